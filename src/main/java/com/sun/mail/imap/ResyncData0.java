@@ -0,0 +1,46 @@
+/***********************************************************************************************************************
+ *
+ * JavaMail Mock2 Provider - open source mock classes for mock up JavaMail
+ * =======================================================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de)
+ * 
+ * Based on ideas from Kohsuke Kawaguchi's Mock-javamail (https://java.net/projects/mock-javamail)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package com.sun.mail.imap;
+
+import com.sun.mail.imap.protocol.UIDSet;
+
+/**
+ * this class is needed currently because com.sun.mail.imap.ResyncData#getUIDSet() has default visibility
+ */
+public final class ResyncData0 {
+
+    /**
+     * @return the known UIDs of the QRESYNC parameters in IMAP sequence set syntax or null if not given
+     */
+    public static String getUIDSet(final ResyncData rd) {
+        final UIDSet[] uids = rd.getUIDSet();
+        return uids == null ? null : UIDSet.toString(uids);
+    }
+
+    private ResyncData0() {
+    }
+
+}
@@ -0,0 +1,217 @@
+/***********************************************************************************************************************
+ *
+ * JavaMail Mock2 Provider - open source mock classes for mock up JavaMail
+ * =======================================================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de)
+ * 
+ * Based on ideas from Kohsuke Kawaguchi's Mock-javamail (https://java.net/projects/mock-javamail)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.javamail.mock2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.search.BodyTerm;
+
+/**
+ * Full text index over the words of the text parts of the messages of a folder. A {@link BodyTerm} matches
+ * substrings, so every word of the pattern must be contained in some word of a matching message. A lookup scans the
+ * vocabulary for those words and intersects their posting lists, which gives a superset of the matching UIDs the
+ * caller verifies with the term itself.
+ * <p>
+ * Extracting the text needs the lock of the message, so {@link #tokenize(Part)} must be called without holding the
+ * folder lock.
+ */
+final class BodyIndex {
+
+    // a word and the UIDs of the messages containing it
+    private static final class Posting {
+        private final UidList uids = new UidList();
+        private final String word;
+
+        private Posting(final String word) {
+            this.word = word;
+        }
+    }
+
+    /**
+     * @return the distinct case folded words of all text parts, or null if the content could not be read
+     */
+    static Set<String> tokenize(final Part part) {
+        final Set<String> tokens = new HashSet<String>();
+
+        try {
+            tokenize(part, tokens);
+        } catch (final Exception e) {
+            // the message can not be indexed and is always a candidate
+            return null;
+        }
+
+        return tokens;
+    }
+
+    // walks the parts like BodyTerm does
+    private static void tokenize(final Part part, final Set<String> tokens) throws MessagingException, IOException {
+        if (part.isMimeType("text/*")) {
+            final Object content = part.getContent();
+
+            if (content instanceof String) {
+                tokenize((String) content, tokens);
+            }
+        } else if (part.isMimeType("multipart/*")) {
+            final Multipart multipart = (Multipart) part.getContent();
+
+            for (int i = 0; i < multipart.getCount(); i++) {
+                tokenize(multipart.getBodyPart(i), tokens);
+            }
+        } else if (part.isMimeType("message/rfc822")) {
+            tokenize((Part) part.getContent(), tokens);
+        }
+    }
+
+    /**
+     * Splits the text into case folded runs of letters and digits.
+     */
+    static void tokenize(final String text, final Collection<String> tokens) {
+        final String folded = SearchPlanner.fold(text);
+        int start = -1;
+
+        for (int i = 0; i <= folded.length(); i++) {
+            final boolean wordChar = i < folded.length() && Character.isLetterOrDigit(folded.charAt(i));
+
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                tokens.add(folded.substring(start, i));
+                start = -1;
+            }
+        }
+    }
+
+    // the postings of each indexed message, so removing it does not read the content again
+    private final Map<Long, Posting[]> messages = new HashMap<Long, Posting[]>();
+
+    private final Map<String, Posting> postings = new HashMap<String, Posting>();
+
+    // messages whose content could not be read
+    private final UidList unindexed = new UidList();
+
+    void add(final long uid, final Set<String> tokens) {
+        if (tokens == null) {
+            unindexed.add(uid);
+            return;
+        }
+
+        final Posting[] added = new Posting[tokens.size()];
+        int i = 0;
+
+        for (final String token : tokens) {
+            Posting posting = postings.get(token);
+
+            if (posting == null) {
+                posting = new Posting(token);
+                postings.put(token, posting);
+            }
+
+            posting.uids.add(uid);
+            added[i++] = posting;
+        }
+
+        messages.put(uid, added);
+    }
+
+    /**
+     * @return a superset of the UIDs of the messages matching the term, or null if the pattern has no words to look up
+     */
+    UidSet lookup(final BodyTerm term) {
+        final List<String> words = new ArrayList<String>();
+        tokenize(term.getPattern(), words);
+
+        if (words.isEmpty()) {
+            return null;
+        }
+
+        UidSet ret = null;
+
+        for (final String word : words) {
+            int count = 0;
+
+            for (final Map.Entry<String, Posting> entry : postings.entrySet()) {
+                if (entry.getKey().contains(word)) {
+                    count += entry.getValue().uids.size();
+                }
+            }
+
+            final long[] uids = new long[count];
+            int pos = 0;
+
+            for (final Map.Entry<String, Posting> entry : postings.entrySet()) {
+                if (entry.getKey().contains(word)) {
+                    pos = entry.getValue().uids.copyTo(uids, pos);
+                }
+            }
+
+            ret = ret == null ? UidSet.of(uids) : ret.intersect(UidSet.of(uids));
+
+            if (ret.isEmpty()) {
+                break;
+            }
+        }
+
+        return ret.union(unindexed.toUidSet());
+    }
+
+    /**
+     * Prunes the posting lists of an expunged message.
+     */
+    void remove(final long uid) {
+        final Posting[] removed = messages.remove(uid);
+
+        if (removed == null) {
+            unindexed.remove(uid);
+            return;
+        }
+
+        for (final Posting posting : removed) {
+            posting.uids.remove(uid);
+
+            if (posting.uids.size() == 0) {
+                postings.remove(posting.word);
+            }
+        }
+    }
+
+    /**
+     * @return number of distinct words
+     */
+    int size() {
+        return postings.size();
+    }
+
+}
@@ -0,0 +1,74 @@
+/***********************************************************************************************************************
+ *
+ * JavaMail Mock2 Provider - open source mock classes for mock up JavaMail
+ * =======================================================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de)
+ * 
+ * Based on ideas from Kohsuke Kawaguchi's Mock-javamail (https://java.net/projects/mock-javamail)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.javamail.mock2;
+
+import java.io.InputStream;
+
+import javax.mail.MessagingException;
+
+/**
+ * Keeps the raw RFC 822 bytes of the messages stored in the folders of a {@link MockMailbox}. Only the parsed headers
+ * of a message stay on the heap, its content is always read from the store.
+ *
+ * @see MockMailbox#setBodyStore(BodyStore)
+ */
+public interface BodyStore {
+
+    /**
+     * A stored message, its bytes never change.
+     */
+    public static interface Body {
+
+        /**
+         * @return the number of bytes
+         */
+        int length();
+
+        /**
+         * @return a new stream over the bytes which implements {@link javax.mail.internet.SharedInputStream}, so the
+         *         content of the message is not copied when it is parsed
+         */
+        InputStream newStream() throws MessagingException;
+
+        /**
+         * Called once for every stored message referencing the body when it is removed, views and streams opened
+         * before stay readable.
+         */
+        void release();
+
+        /**
+         * Called when another stored message starts referencing the body.
+         */
+        void retain();
+    }
+
+    /**
+     * @param raw
+     *            the message, the store may keep the array
+     */
+    Body put(byte[] raw) throws MessagingException;
+
+}
@@ -0,0 +1,250 @@
+/***********************************************************************************************************************
+ *
+ * JavaMail Mock2 Provider - open source mock classes for mock up JavaMail
+ * =======================================================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de)
+ * 
+ * Based on ideas from Kohsuke Kawaguchi's Mock-javamail (https://java.net/projects/mock-javamail)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.javamail.mock2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.mail.MessagingException;
+import javax.mail.util.SharedByteArrayInputStream;
+
+/**
+ * Keeps the messages deflated on the heap, for large fixtures of which most messages are never read. The decompressed
+ * bytes of recently read messages are kept in an LRU cache bounded by their total size, so hot messages are inflated
+ * once. Messages which do not get smaller are kept as they are.
+ */
+public class CompressedBodyStore implements BodyStore {
+
+    private final class CompressedBody implements Body {
+        private final byte[] compressed;
+        private final int length;
+
+        private CompressedBody(final byte[] compressed, final int length) {
+            this.compressed = compressed;
+            this.length = length;
+        }
+
+        private byte[] inflate() throws MessagingException {
+            final Inflater inflater = new Inflater();
+
+            try {
+                inflater.setInput(compressed);
+                final byte[] raw = new byte[length];
+                int offset = 0;
+
+                while (offset < length) {
+                    final int count = inflater.inflate(raw, offset, length - offset);
+
+                    if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+                        throw new MessagingException("Truncated message, " + offset + " of " + length + " bytes");
+                    }
+
+                    offset += count;
+                }
+
+                return raw;
+            } catch (final DataFormatException e) {
+                throw new MessagingException("Corrupt message", e);
+            } finally {
+                inflater.end();
+            }
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public InputStream newStream() throws MessagingException {
+            if (compressed.length == length) {
+                // kept as it is
+                return new SharedByteArrayInputStream(compressed);
+            }
+
+            byte[] raw = getCached(this);
+
+            if (raw == null) {
+                raw = inflate();
+                putCached(this, raw);
+            }
+
+            return new SharedByteArrayInputStream(raw);
+        }
+
+        @Override
+        public void release() {
+            removeCached(this);
+        }
+
+        @Override
+        public void retain() {
+            // garbage collected
+        }
+    }
+
+    public static final long DEFAULT_CACHE_SIZE = 16 * 1024 * 1024;
+
+    private final Map<CompressedBody, byte[]> cache = new LinkedHashMap<CompressedBody, byte[]>(16, 0.75f, true);
+    private long cachedBytes;
+    private final long cacheSize;
+    private long evictions;
+    private long hits;
+    private final int level;
+    private long misses;
+
+    /**
+     * Caches up to {@link #DEFAULT_CACHE_SIZE} decompressed bytes and compresses with {@link Deflater#BEST_SPEED}.
+     */
+    public CompressedBodyStore() {
+        this(DEFAULT_CACHE_SIZE, Deflater.BEST_SPEED);
+    }
+
+    /**
+     * @param cacheSize
+     *            the maximum number of decompressed bytes cached, 0 disables the cache
+     * @param level
+     *            the {@link Deflater} compression level
+     */
+    public CompressedBodyStore(final long cacheSize, final int level) {
+        super();
+
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException("cache size must not be negative: " + cacheSize);
+        }
+
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("invalid compression level: " + level);
+        }
+
+        this.cacheSize = cacheSize;
+        this.level = level;
+    }
+
+    private byte[] deflate(final byte[] raw) {
+        final Deflater deflater = new Deflater(level);
+
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + 64);
+            final byte[] buffer = new byte[8192];
+
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+
+                if (out.size() >= raw.length) {
+                    // not worth it
+                    return raw;
+                }
+            }
+
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @return the number of decompressed bytes currently cached
+     */
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    private synchronized byte[] getCached(final CompressedBody body) {
+        final byte[] raw = cache.get(body);
+
+        if (raw == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+
+        return raw;
+    }
+
+    /**
+     * @return the number of messages dropped from the cache to make room for others
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the number of reads served from the cache
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of reads which had to inflate the message
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public Body put(final byte[] raw) {
+        return new CompressedBody(deflate(raw), raw.length);
+    }
+
+    private synchronized void putCached(final CompressedBody body, final byte[] raw) {
+        if (raw.length > cacheSize) {
+            return;
+        }
+
+        final byte[] old = cache.put(body, raw);
+
+        if (old != null) {
+            cachedBytes -= old.length;
+        }
+
+        cachedBytes += raw.length;
+
+        for (final Iterator<byte[]> it = cache.values().iterator(); cachedBytes > cacheSize && it.hasNext();) {
+            cachedBytes -= it.next().length;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    private synchronized void removeCached(final CompressedBody body) {
+        final byte[] raw = cache.remove(body);
+
+        if (raw != null) {
+            cachedBytes -= raw.length;
+        }
+    }
+
+}
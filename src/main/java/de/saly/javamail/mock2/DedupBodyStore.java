@@ -0,0 +1,163 @@
+/***********************************************************************************************************************
+ *
+ * JavaMail Mock2 Provider - open source mock classes for mock up JavaMail
+ * =======================================================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de)
+ * 
+ * Based on ideas from Kohsuke Kawaguchi's Mock-javamail (https://java.net/projects/mock-javamail)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.javamail.mock2;
+
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.mail.MessagingException;
+
+/**
+ * Stores identical messages only once. Messages are addressed by their SHA-256 digest and reference counted, a body
+ * is forgotten once the last stored message referencing it is expunged. The distinct bodies are kept in another
+ * {@link BodyStore}.
+ * <p>
+ * One instance wrapping a {@link HeapBodyStore} is shared by all mailboxes by default, so a message delivered to many
+ * recipients or copied between folders is kept once.
+ */
+public class DedupBodyStore implements BodyStore {
+
+    private static final class Digest {
+        private final byte[] digest;
+        private final int hash;
+        private final int length;
+
+        private Digest(final byte[] digest, final int length) {
+            this.digest = digest;
+            this.length = length;
+            this.hash = 31 * Arrays.hashCode(digest) + length;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Digest)) {
+                return false;
+            }
+
+            final Digest other = (Digest) obj;
+            return length == other.length && Arrays.equals(digest, other.digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private final class SharedBody implements Body {
+        private final Body body;
+        private final Digest digest;
+        private int references = 1;
+
+        private SharedBody(final Digest digest, final Body body) {
+            this.digest = digest;
+            this.body = body;
+        }
+
+        @Override
+        public int length() {
+            return body.length();
+        }
+
+        @Override
+        public InputStream newStream() throws MessagingException {
+            return body.newStream();
+        }
+
+        @Override
+        public void release() {
+            synchronized (DedupBodyStore.this) {
+                if (--references == 0 && bodies.get(digest) == this) {
+                    bodies.remove(digest);
+                    body.release();
+                }
+            }
+        }
+
+        @Override
+        public void retain() {
+            synchronized (DedupBodyStore.this) {
+                references++;
+            }
+        }
+    }
+
+    private final Map<Digest, SharedBody> bodies = new HashMap<Digest, SharedBody>();
+    private final BodyStore store;
+
+    public DedupBodyStore(final BodyStore store) {
+        super();
+
+        if (store == null) {
+            throw new IllegalArgumentException("store must not be null");
+        }
+
+        this.store = store;
+    }
+
+    /**
+     * Forgets all bodies, messages already stored keep theirs.
+     */
+    public synchronized void clear() {
+        bodies.clear();
+    }
+
+    @Override
+    public Body put(final byte[] raw) throws MessagingException {
+        final Digest digest;
+
+        try {
+            digest = new Digest(MessageDigest.getInstance("SHA-256").digest(raw), raw.length);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new MessagingException("SHA-256 not supported", e);
+        }
+
+        synchronized (this) {
+            SharedBody body = bodies.get(digest);
+
+            if (body == null) {
+                body = new SharedBody(digest, store.put(raw));
+                bodies.put(digest, body);
+            } else {
+                body.references++;
+            }
+
+            return body;
+        }
+    }
+
+    /**
+     * @return the number of distinct bodies stored
+     */
+    public synchronized int size() {
+        return bodies.size();
+    }
+
+}
@@ -0,0 +1,125 @@
+/***********************************************************************************************************************
+ *
+ * JavaMail Mock2 Provider - open source mock classes for mock up JavaMail
+ * =======================================================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de)
+ * 
+ * Based on ideas from Kohsuke Kawaguchi's Mock-javamail (https://java.net/projects/mock-javamail)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.javamail.mock2;
+
+import java.util.Date;
+
+import javax.mail.Address;
+import javax.mail.Message.RecipientType;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * The decoded ENVELOPE fields of a stored message. Computed once when first fetched and shared with all views of the
+ * message, the getters return copies.
+ */
+final class Envelope {
+
+    private final Address[] bcc;
+    private final Address[] cc;
+    private final Address[] from;
+    private final String messageId;
+    private final Address[] replyTo;
+    private final Address sender;
+    private final Date sentDate;
+    private final String subject;
+    private final Address[] to;
+
+    Envelope(final MimeMessage msg) throws MessagingException {
+        bcc = msg.getRecipients(RecipientType.BCC);
+        cc = msg.getRecipients(RecipientType.CC);
+        from = msg.getFrom();
+        messageId = msg.getMessageID();
+        replyTo = msg.getReplyTo();
+        sender = msg.getSender();
+        sentDate = msg.getSentDate();
+        subject = msg.getSubject();
+        to = msg.getRecipients(RecipientType.TO);
+    }
+
+    private static Address[] copy(final Address[] addresses) {
+        if (addresses == null) {
+            return null;
+        }
+
+        final Address[] ret = new Address[addresses.length];
+
+        for (int i = 0; i < addresses.length; i++) {
+            ret[i] = copy(addresses[i]);
+        }
+
+        return ret;
+    }
+
+    private static Address copy(final Address address) {
+        return address instanceof InternetAddress ? (Address) ((InternetAddress) address).clone() : address;
+    }
+
+    Address[] getFrom() {
+        return copy(from);
+    }
+
+    String getMessageID() {
+        return messageId;
+    }
+
+    /**
+     * @return the recipients or null if the type is not part of the envelope
+     */
+    Address[] getRecipients(final RecipientType type) {
+        if (type == RecipientType.TO) {
+            return copy(to);
+        }
+
+        if (type == RecipientType.CC) {
+            return copy(cc);
+        }
+
+        if (type == RecipientType.BCC) {
+            return copy(bcc);
+        }
+
+        return null;
+    }
+
+    Address[] getReplyTo() {
+        return copy(replyTo);
+    }
+
+    Address getSender() {
+        return sender == null ? null : copy(sender);
+    }
+
+    Date getSentDate() {
+        return sentDate == null ? null : new Date(sentDate.getTime());
+    }
+
+    String getSubject() {
+        return subject;
+    }
+
+}
@@ -0,0 +1,102 @@
+/***********************************************************************************************************************
+ *
+ * JavaMail Mock2 Provider - open source mock classes for mock up JavaMail
+ * =======================================================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de)
+ * 
+ * Based on ideas from Kohsuke Kawaguchi's Mock-javamail (https://java.net/projects/mock-javamail)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.javamail.mock2;
+
+import java.util.Arrays;
+
+/**
+ * The UIDs expunged from a {@link MailboxFolder} with the mod-sequence of their expunge, for QRESYNC. Only the most
+ * recent entries are kept, older ones are dropped and the journal remembers up to which mod-sequence it is incomplete.
+ */
+final class ExpungeJournal {
+
+    private final int capacity;
+    // mod-sequence up to which expunges may have been dropped
+    private long floor;
+    private final long[] modSeqs;
+    private int size;
+    // ring buffer, the oldest entry is at start
+    private int start;
+    private final long[] uids;
+
+    ExpungeJournal(final int capacity) {
+        this.capacity = capacity;
+        this.modSeqs = new long[capacity];
+        this.uids = new long[capacity];
+    }
+
+    /**
+     * @param modSeq
+     *            must not be lower than the one of the previous entry
+     */
+    void add(final long modSeq, final long uid) {
+        if (size == capacity) {
+            floor = modSeqs[start];
+            start = (start + 1) % capacity;
+            size--;
+        }
+
+        final int pos = (start + size) % capacity;
+        modSeqs[pos] = modSeq;
+        uids[pos] = uid;
+        size++;
+    }
+
+    /**
+     * Forgets all entries, expunges up to the given mod-sequence are unknown afterwards.
+     */
+    void clear(final long modSeq) {
+        start = 0;
+        size = 0;
+        floor = modSeq;
+    }
+
+    /**
+     * @return the UIDs expunged after the given mod-sequence or null if the journal does not reach back that far
+     */
+    long[] since(final long modSeq) {
+        if (modSeq < floor) {
+            return null;
+        }
+
+        int count = 0;
+
+        // newest first, stops at the first older entry
+        while (count < size && modSeqs[(start + size - 1 - count) % capacity] > modSeq) {
+            count++;
+        }
+
+        final long[] ret = new long[count];
+
+        for (int i = 0; i < count; i++) {
+            ret[i] = uids[(start + size - count + i) % capacity];
+        }
+
+        Arrays.sort(ret);
+        return ret;
+    }
+
+}
@@ -0,0 +1,361 @@
+/***********************************************************************************************************************
+ *
+ * JavaMail Mock2 Provider - open source mock classes for mock up JavaMail
+ * =======================================================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de)
+ * 
+ * Based on ideas from Kohsuke Kawaguchi's Mock-javamail (https://java.net/projects/mock-javamail)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.javamail.mock2;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.mail.Flags;
+import javax.mail.Flags.Flag;
+
+/**
+ * One bitmap per system and user flag over the slots of a {@link UidIndex}, plus a bitmap of the live slots. Each
+ * bitmap keeps its cardinality so counting is O(1).
+ */
+final class FlagIndex {
+
+    static final class Bitmap {
+        private final BitSet bits = new BitSet();
+        private int cardinality;
+
+        int cardinality() {
+            return cardinality;
+        }
+
+        boolean get(final int slot) {
+            return bits.get(slot);
+        }
+
+        private void remap(final UidIndex index) {
+            final BitSet old = (BitSet) bits.clone();
+            bits.clear();
+
+            for (int slot = old.nextSetBit(0); slot >= 0; slot = old.nextSetBit(slot + 1)) {
+                bits.set(index.msgNumAtSlot(slot) - 1);
+            }
+        }
+
+        private void set(final int slot, final boolean value) {
+            if (bits.get(slot) != value) {
+                bits.set(slot, value);
+                cardinality += value ? 1 : -1;
+            }
+        }
+
+        BitSet toBitSet() {
+            return (BitSet) bits.clone();
+        }
+    }
+
+    /**
+     * Immutable copy of the bitmaps indexed by message number - 1 instead of slot.
+     */
+    static final class Frozen {
+        private final int size;
+        private final BitSet[] systemFlags;
+        private final Map<String, BitSet> userFlags;
+
+        private Frozen(final int size, final BitSet[] systemFlags, final Map<String, BitSet> userFlags) {
+            this.size = size;
+            this.systemFlags = systemFlags;
+            this.userFlags = userFlags;
+        }
+
+        /**
+         * @return number of messages which have all of the given flags set
+         */
+        int count(final Flags flags) {
+            final BitSet ret = new BitSet(size);
+            ret.set(0, size);
+
+            for (final Flag flag : flags.getSystemFlags()) {
+                ret.and(systemFlags[indexOf(flag)]);
+            }
+
+            for (final String flag : flags.getUserFlags()) {
+                final BitSet bits = userFlags.get(key(flag));
+
+                if (bits == null) {
+                    return 0;
+                }
+
+                ret.and(bits);
+            }
+
+            return ret.cardinality();
+        }
+
+        Flags getFlags(final int pos) {
+            final Flags flags = new Flags();
+
+            for (int i = 0; i < SYSTEM_FLAGS.length; i++) {
+                if (systemFlags[i].get(pos)) {
+                    flags.add(SYSTEM_FLAGS[i]);
+                }
+            }
+
+            for (final Map.Entry<String, BitSet> entry : userFlags.entrySet()) {
+                if (entry.getValue().get(pos)) {
+                    flags.add(entry.getKey());
+                }
+            }
+
+            return flags;
+        }
+
+        boolean isSet(final int pos, final Flag flag) {
+            return systemFlags[indexOf(flag)].get(pos);
+        }
+    }
+
+    // USER is a plain bit of Flags like the others, it is not derived from the user flags
+    private static final Flag[] SYSTEM_FLAGS = new Flag[] { Flag.ANSWERED, Flag.DELETED, Flag.DRAFT, Flag.FLAGGED, Flag.RECENT,
+            Flag.SEEN, Flag.USER };
+
+    private final Bitmap live = new Bitmap();
+    private final Bitmap[] systemFlags = new Bitmap[SYSTEM_FLAGS.length];
+    private final Map<String, Bitmap> userFlags = new HashMap<String, Bitmap>();
+
+    FlagIndex() {
+        for (int i = 0; i < systemFlags.length; i++) {
+            systemFlags[i] = new Bitmap();
+        }
+    }
+
+    void add(final int slot, final Flags flags) {
+        live.set(slot, true);
+        update(slot, flags);
+    }
+
+    void clear() {
+        live.bits.clear();
+        live.cardinality = 0;
+
+        for (final Bitmap bitmap : systemFlags) {
+            bitmap.bits.clear();
+            bitmap.cardinality = 0;
+        }
+
+        userFlags.clear();
+    }
+
+    /**
+     * Must be called right before {@link UidIndex#compact()} while the slot numbers are still the old ones.
+     */
+    void compact(final UidIndex index) {
+        live.remap(index);
+
+        for (final Bitmap bitmap : systemFlags) {
+            bitmap.remap(index);
+        }
+
+        for (final Bitmap bitmap : userFlags.values()) {
+            bitmap.remap(index);
+        }
+    }
+
+    /**
+     * @return number of live messages which have all of the given flags set
+     */
+    int count(final Flags flags) {
+        final Flag[] sf = flags.getSystemFlags();
+        final String[] uf = flags.getUserFlags();
+
+        if (sf.length + uf.length == 0) {
+            return live.cardinality;
+        }
+
+        if (sf.length + uf.length == 1) {
+            final Bitmap bitmap = sf.length == 1 ? getBitmap(sf[0]) : userFlags.get(key(uf[0]));
+            return bitmap == null ? 0 : bitmap.cardinality;
+        }
+
+        return matching(flags).cardinality();
+    }
+
+    /**
+     * @return a copy of the bitmaps with the tombstone slots squeezed out
+     */
+    Frozen freeze(final UidIndex index) {
+        // position of each slot in message number order, -1 for tombstones
+        final int[] positions = new int[index.slotCount()];
+        int pos = 0;
+
+        for (int slot = 0; slot < positions.length; slot++) {
+            positions[slot] = index.getAtSlot(slot) == null ? -1 : pos++;
+        }
+
+        final BitSet[] frozenSystemFlags = new BitSet[systemFlags.length];
+
+        for (int i = 0; i < systemFlags.length; i++) {
+            frozenSystemFlags[i] = freeze(systemFlags[i], positions);
+        }
+
+        final Map<String, BitSet> frozenUserFlags = new HashMap<String, BitSet>();
+
+        for (final Map.Entry<String, Bitmap> entry : userFlags.entrySet()) {
+            frozenUserFlags.put(entry.getKey(), freeze(entry.getValue(), positions));
+        }
+
+        return new Frozen(pos, frozenSystemFlags, frozenUserFlags);
+    }
+
+    private static BitSet freeze(final Bitmap bitmap, final int[] positions) {
+        final BitSet ret = new BitSet(positions.length);
+
+        for (int slot = bitmap.bits.nextSetBit(0); slot >= 0; slot = bitmap.bits.nextSetBit(slot + 1)) {
+            if (positions[slot] >= 0) {
+                ret.set(positions[slot]);
+            }
+        }
+
+        return ret;
+    }
+
+    private Bitmap getBitmap(final Flag flag) {
+        return systemFlags[indexOf(flag)];
+    }
+
+    private static int indexOf(final Flag flag) {
+        for (int i = 0; i < SYSTEM_FLAGS.length; i++) {
+            if (SYSTEM_FLAGS[i] == flag) {
+                return i;
+            }
+        }
+
+        throw new IllegalArgumentException("unknown system flag " + flag);
+    }
+
+    boolean isSet(final int slot, final Flag flag) {
+        return getBitmap(flag).get(slot);
+    }
+
+    // user flags are case-insensitive
+    private static String key(final String userFlag) {
+        return userFlag.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * @return live slots which have all of the given flags set
+     */
+    BitSet matching(final Flags flags) {
+        final BitSet ret = live.toBitSet();
+
+        for (final Flag flag : flags.getSystemFlags()) {
+            ret.and(getBitmap(flag).bits);
+        }
+
+        for (final String flag : flags.getUserFlags()) {
+            final Bitmap bitmap = userFlags.get(key(flag));
+
+            if (bitmap == null) {
+                ret.clear();
+                break;
+            }
+
+            ret.and(bitmap.bits);
+        }
+
+        return ret;
+    }
+
+    /**
+     * @return live slots which have none of the given flags set
+     */
+    BitSet matchingNone(final Flags flags) {
+        final BitSet ret = live.toBitSet();
+
+        for (final Flag flag : flags.getSystemFlags()) {
+            ret.andNot(getBitmap(flag).bits);
+        }
+
+        for (final String flag : flags.getUserFlags()) {
+            final Bitmap bitmap = userFlags.get(key(flag));
+
+            if (bitmap != null) {
+                ret.andNot(bitmap.bits);
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * @return the first slot at or after the given one which has the flag set or -1
+     */
+    int nextSetSlot(final Flag flag, final int fromSlot) {
+        return getBitmap(flag).bits.nextSetBit(fromSlot);
+    }
+
+    /**
+     * @return live slots which do not have all of the given flags set
+     */
+    BitSet notMatching(final Flags flags) {
+        final BitSet ret = live.toBitSet();
+        ret.andNot(matching(flags));
+        return ret;
+    }
+
+    void remove(final int slot) {
+        live.set(slot, false);
+
+        for (final Bitmap bitmap : systemFlags) {
+            bitmap.set(slot, false);
+        }
+
+        for (final Bitmap bitmap : userFlags.values()) {
+            bitmap.set(slot, false);
+        }
+    }
+
+    int size() {
+        return live.cardinality;
+    }
+
+    /**
+     * Brings the bitmaps for the slot in line with the current flags of the message.
+     */
+    void update(final int slot, final Flags flags) {
+        for (int i = 0; i < SYSTEM_FLAGS.length; i++) {
+            systemFlags[i].set(slot, flags.contains(SYSTEM_FLAGS[i]));
+        }
+
+        for (final Map.Entry<String, Bitmap> entry : userFlags.entrySet()) {
+            entry.getValue().set(slot, flags.contains(entry.getKey()));
+        }
+
+        for (final String flag : flags.getUserFlags()) {
+            if (!userFlags.containsKey(key(flag))) {
+                final Bitmap bitmap = new Bitmap();
+                bitmap.set(slot, true);
+                userFlags.put(key(flag), bitmap);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,230 @@
+/***********************************************************************************************************************
+ *
+ * JavaMail Mock2 Provider - open source mock classes for mock up JavaMail
+ * =======================================================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de)
+ * 
+ * Based on ideas from Kohsuke Kawaguchi's Mock-javamail (https://java.net/projects/mock-javamail)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.javamail.mock2;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.mail.Address;
+import javax.mail.Message.RecipientType;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.search.FromStringTerm;
+import javax.mail.search.HeaderTerm;
+import javax.mail.search.MessageIDTerm;
+import javax.mail.search.RecipientStringTerm;
+import javax.mail.search.SearchTerm;
+import javax.mail.search.StringTerm;
+import javax.mail.search.SubjectTerm;
+
+/**
+ * Inverted index from the case folded values of some headers to the UIDs of the messages carrying them. A
+ * {@link StringTerm} matches substrings, so a lookup scans the distinct values of a field, which are far fewer than the
+ * messages in a typical folder and need no parsing. Lookups return a superset of the matching UIDs, the caller verifies
+ * the candidates with the term itself. Expunged UIDs are not removed, they are filtered out on resolution.
+ */
+final class HeaderIndex {
+
+    static final String[] DEFAULT_HEADERS = new String[] { "Subject", "From", "To", "Cc", "Message-ID" };
+
+    // fields holding decoded values as the search terms see them
+    private static final String FROM = "from()";
+    private static final String SUBJECT = "subject()";
+    private static final String CC = "cc()";
+    private static final String TO = "to()";
+
+    private static String key(final String value) {
+        return value.toLowerCase(Locale.ENGLISH);
+    }
+
+    private static String toString(final Address address) {
+        // same as AddressStringTerm does
+        return address instanceof InternetAddress ? ((InternetAddress) address).toUnicodeString() : address.toString();
+    }
+
+    private final Map<String, Map<String, UidList>> fields = new HashMap<String, Map<String, UidList>>();
+
+    // lower cased names of the raw headers indexed
+    private final Set<String> headers;
+
+    private int indexed;
+
+    private int removed;
+
+    HeaderIndex(final Set<String> headers) {
+        final Set<String> names = new LinkedHashSet<String>();
+
+        for (final String header : headers) {
+            names.add(key(header));
+        }
+
+        this.headers = Collections.unmodifiableSet(names);
+    }
+
+    void add(final MockMessage msg) throws MessagingException {
+        final long uid = msg.getMockid();
+
+        add(SUBJECT, msg.getSubject(), uid);
+        add(FROM, msg.getFrom(), uid);
+        add(TO, msg.getRecipients(RecipientType.TO), uid);
+        add(CC, msg.getRecipients(RecipientType.CC), uid);
+
+        for (final String header : headers) {
+            final String[] values = msg.getHeader(header);
+
+            if (values != null) {
+                for (final String value : values) {
+                    add(header, value, uid);
+                }
+            }
+        }
+
+        indexed++;
+    }
+
+    private void add(final String field, final Address[] addresses, final long uid) {
+        if (addresses != null) {
+            for (final Address address : addresses) {
+                add(field, toString(address), uid);
+            }
+        }
+    }
+
+    private void add(final String field, final String value, final long uid) {
+        if (value == null) {
+            return;
+        }
+
+        Map<String, UidList> values = fields.get(field);
+
+        if (values == null) {
+            values = new HashMap<String, UidList>();
+            fields.put(field, values);
+        }
+
+        final String key = SearchPlanner.fold(value);
+        UidList uids = values.get(key);
+
+        if (uids == null) {
+            uids = new UidList();
+            values.put(key, uids);
+        }
+
+        uids.add(uid);
+    }
+
+    /**
+     * @return the lower cased names of the raw headers in this index
+     */
+    Set<String> getHeaders() {
+        return headers;
+    }
+
+    // name of the field which answers the term or null
+    private String getField(final SearchTerm term) {
+        if (term instanceof SubjectTerm) {
+            return SUBJECT;
+        }
+
+        if (term instanceof FromStringTerm) {
+            return FROM;
+        }
+
+        if (term instanceof RecipientStringTerm) {
+            final RecipientType type = ((RecipientStringTerm) term).getRecipientType();
+            return type == RecipientType.TO ? TO : type == RecipientType.CC ? CC : null;
+        }
+
+        if (term instanceof MessageIDTerm) {
+            return headers.contains("message-id") ? "message-id" : null;
+        }
+
+        if (term instanceof HeaderTerm) {
+            final String header = key(((HeaderTerm) term).getHeaderName());
+            return headers.contains(header) ? header : null;
+        }
+
+        return null;
+    }
+
+    boolean isIndexable(final SearchTerm term) {
+        return getField(term) != null;
+    }
+
+    /**
+     * @return true if too many of the indexed messages are gone, the index should be rebuilt then
+     */
+    boolean isStale() {
+        return removed > 32 && removed > indexed - removed;
+    }
+
+    /**
+     * @return a superset of the UIDs of the messages matching the term, or null if the term can not be answered by
+     *         this index
+     */
+    UidSet lookup(final SearchTerm term) {
+        final String field = getField(term);
+
+        if (field == null) {
+            return null;
+        }
+
+        final Map<String, UidList> values = fields.get(field);
+
+        if (values == null) {
+            return UidSet.EMPTY;
+        }
+
+        final String pattern = SearchPlanner.fold(((StringTerm) term).getPattern());
+        int count = 0;
+
+        for (final Map.Entry<String, UidList> entry : values.entrySet()) {
+            if (entry.getKey().contains(pattern)) {
+                count += entry.getValue().size();
+            }
+        }
+
+        final long[] uids = new long[count];
+        int pos = 0;
+
+        for (final Map.Entry<String, UidList> entry : values.entrySet()) {
+            if (entry.getKey().contains(pattern)) {
+                pos = entry.getValue().copyTo(uids, pos);
+            }
+        }
+
+        return UidSet.of(uids);
+    }
+
+    void removed(final int count) {
+        removed += count;
+    }
+
+}
@@ -0,0 +1,70 @@
+/***********************************************************************************************************************
+ *
+ * JavaMail Mock2 Provider - open source mock classes for mock up JavaMail
+ * =======================================================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de)
+ * 
+ * Based on ideas from Kohsuke Kawaguchi's Mock-javamail (https://java.net/projects/mock-javamail)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.javamail.mock2;
+
+import java.io.InputStream;
+
+import javax.mail.util.SharedByteArrayInputStream;
+
+/**
+ * Keeps the messages in byte arrays on the heap, the default {@link BodyStore}.
+ */
+public class HeapBodyStore implements BodyStore {
+
+    private static final class HeapBody implements Body {
+        private final byte[] raw;
+
+        private HeapBody(final byte[] raw) {
+            this.raw = raw;
+        }
+
+        @Override
+        public int length() {
+            return raw.length;
+        }
+
+        @Override
+        public InputStream newStream() {
+            return new SharedByteArrayInputStream(raw);
+        }
+
+        @Override
+        public void release() {
+            // garbage collected
+        }
+
+        @Override
+        public void retain() {
+            // garbage collected
+        }
+    }
+
+    @Override
+    public Body put(final byte[] raw) {
+        return new HeapBody(raw);
+    }
+
+}
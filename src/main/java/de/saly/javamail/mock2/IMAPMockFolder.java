@@ -51,7 +51,9 @@ import com.sun.mail.iap.ProtocolException;
 import com.sun.mail.iap.Response;
 import com.sun.mail.imap.AppendUID;
 import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.MessageVanishedEvent;
 import com.sun.mail.imap.ResyncData;
+import com.sun.mail.imap.ResyncData0;
 import com.sun.mail.imap.SortTerm;
 
 import de.saly.javamail.mock2.MailboxFolder.MailboxEventListener;
@@ -75,6 +77,9 @@ public class IMAPMockFolder extends IMAPFolder implements MailboxEventListener {
 
     private int openMode;
 
+    // messages as seen by this session, message numbers only move on when the session asks for it (count, IDLE, EXPUNGE)
+    private volatile MailboxFolder.Snapshot snapshot;
+
     private final IMAPMockStore store;
 
     protected IMAPMockFolder(final IMAPMockStore store, final MailboxFolder mailboxFolder) {
@@ -110,9 +115,7 @@ public class IMAPMockFolder extends IMAPFolder implements MailboxEventListener {
         checkExists();
         // checkOpened();
         // checkWriteMode();
-        for (final Message m : msgs) {
-            mailboxFolder.add((MimeMessage) m);
-        }
+        mailboxFolder.addAll(toMimeMessages(msgs));
 
         logger.debug("Append " + msgs.length + " to " + getFullName());
     }
@@ -123,18 +126,22 @@ public class IMAPMockFolder extends IMAPFolder implements MailboxEventListener {
         checkExists();
         // checkOpened();
         // checkWriteMode();
-        final AppendUID[] uids = new AppendUID[msgs.length];
-        int i = 0;
-        for (final Message m : msgs) {
-            final MockMessage mockMessage = (MockMessage) mailboxFolder.add((MimeMessage) m);
-            uids[i++] = new AppendUID(mailboxFolder.getUidValidity(), mockMessage.getMockid());
-        }
+        final AppendUID[] uids = toAppendUIDs(mailboxFolder.addAll(toMimeMessages(msgs)));
 
         logger.debug("Append " + msgs.length + " to " + getFullName());
 
         return uids;
     }
 
+    /**
+     * Brings the pinned snapshot of this session up to date, like a NOOP would do.
+     */
+    protected void advanceSnapshot() {
+        if (opened) {
+            snapshot = mailboxFolder.getSnapshot();
+        }
+    }
+
     @Override
     protected void checkClosed() {
         if (opened) {
@@ -176,6 +183,7 @@ public class IMAPMockFolder extends IMAPFolder implements MailboxEventListener {
         }
 
         opened = false;
+        snapshot = null;
         logger.debug("Folder " + getFullName() + " closed (" + objectId + ")");
         notifyConnectionListeners(ConnectionEvent.CLOSED);
     }
@@ -206,13 +214,7 @@ public class IMAPMockFolder extends IMAPFolder implements MailboxEventListener {
             return null;
         }
 
-        final AppendUID[] uids = new AppendUID[msgs.length];
-
-        int i = 0;
-        for (final Message m : msgs) {
-            final MockMessage mockMessage = (MockMessage) mailboxFolder.add((MimeMessage) m);
-            uids[i++] = new AppendUID(mailboxFolder.getUidValidity(), mockMessage.getMockid());
-        }
+        final AppendUID[] uids = toAppendUIDs(mailboxFolder.addAll(toMimeMessages(msgs)));
 
         logger.debug("Copied " + msgs.length + " to " + getFullName());
 
@@ -285,6 +287,7 @@ public class IMAPMockFolder extends IMAPFolder implements MailboxEventListener {
         checkWriteMode();
 
         final Message[] removed = wrap(mailboxFolder.expunge());
+        advanceSnapshot();
 
         if (removed.length > 0) {
             notifyMessageRemovedListeners(true, removed);
@@ -301,6 +304,7 @@ public class IMAPMockFolder extends IMAPFolder implements MailboxEventListener {
         checkOpened();
         checkWriteMode();
         final Message[] removed = wrap(mailboxFolder.expunge(msgs));
+        advanceSnapshot();
 
         if (removed.length > 0) {
             notifyMessageRemovedListeners(true, removed);
@@ -313,7 +317,7 @@ public class IMAPMockFolder extends IMAPFolder implements MailboxEventListener {
     @Override
     public synchronized void fetch(final Message[] msgs, final FetchProfile fp) throws MessagingException {
         abortIdle();
-        // do nothing more
+        mailboxFolder.prefetch(msgs, fp);
     }
 
     @Override
@@ -354,7 +358,7 @@ public class IMAPMockFolder extends IMAPFolder implements MailboxEventListener {
             return -1;
         }
 
-        return mailboxFolder.getByFlags(new Flags(Flags.Flag.DELETED), false).length;
+        return mailboxFolder.getCountByFlags(new Flags(Flags.Flag.DELETED), true);
     }
 
     @Override
@@ -380,7 +384,8 @@ public class IMAPMockFolder extends IMAPFolder implements MailboxEventListener {
 
     @Override
     public synchronized long getHighestModSeq() throws MessagingException {
-        throw new MessagingException("CONDSTORE not supported");
+        checkExists();
+        return mailboxFolder.getHighestModSeq();
     }
 
     @Override
@@ -388,7 +393,9 @@ public class IMAPMockFolder extends IMAPFolder implements MailboxEventListener {
         abortIdle();
         checkExists();
         checkOpened();
-        return new MockMessage(mailboxFolder.getByMsgNum(msgnum), this);
+        final MockMessage m = new MockMessage(snapshot.getMessage(msgnum), this);
+        m.setMessageNumber(msgnum);
+        return m;
     }
 
     @Override
@@ -403,7 +410,14 @@ public class IMAPMockFolder extends IMAPFolder implements MailboxEventListener {
     public int getMessageCount() throws MessagingException {
         abortIdle();
         checkExists();
-        return mailboxFolder.getMessageCount();
+
+        if (!opened) {
+            return mailboxFolder.getMessageCount();
+        }
+
+        // JavaMail issues a NOOP here for an open folder
+        advanceSnapshot();
+        return snapshot.getMessageCount();
     }
 
     @Override
@@ -411,10 +425,12 @@ public class IMAPMockFolder extends IMAPFolder implements MailboxEventListener {
         abortIdle();
         checkExists();
         checkOpened();
+        final MailboxFolder.Snapshot pinned = snapshot;
         final List<Message> messages = new ArrayList<Message>();
         for (int i = low; i <= high; i++) {
-            final Message m = mailboxFolder.getByMsgNum(i);
-            messages.add(new MockMessage(m, this));
+            final MockMessage m = new MockMessage(pinned.getMessage(i), this);
+            m.setMessageNumber(i);
+            messages.add(m);
         }
         return messages.toArray(new Message[messages.size()]);
     }
@@ -430,6 +446,10 @@ public class IMAPMockFolder extends IMAPFolder implements MailboxEventListener {
 
     @Override
     public synchronized Message[] getMessagesByUID(final long[] uids) throws MessagingException {
+        return getMessagesByUID(UidSet.of(uids));
+    }
+
+    public synchronized Message[] getMessagesByUID(final UidSet uids) throws MessagingException {
         abortIdle();
         checkExists();
         checkOpened();
@@ -439,7 +459,10 @@ public class IMAPMockFolder extends IMAPFolder implements MailboxEventListener {
     @Override
     public synchronized Message[] getMessagesByUIDChangedSince(final long start, final long end, final long modseq)
             throws MessagingException {
-        throw new MessagingException("CONDSTORE not supported");
+        abortIdle();
+        checkExists();
+        checkOpened();
+        return wrap(mailboxFolder.getByIdsChangedSince(UidSet.range(start, end), modseq));
     }
 
     @Override
@@ -452,7 +475,7 @@ public class IMAPMockFolder extends IMAPFolder implements MailboxEventListener {
     public int getNewMessageCount() throws MessagingException {
         abortIdle();
         checkExists();
-        return mailboxFolder.getByFlags(new Flags(Flag.RECENT), true).length; // TODO
+        return mailboxFolder.getCountByFlags(new Flags(Flag.RECENT), true); // TODO
         // or
         // is
         // it
@@ -488,12 +511,34 @@ public class IMAPMockFolder extends IMAPFolder implements MailboxEventListener {
 
     @Override
     public synchronized Message[] getSortedMessages(final SortTerm[] term) throws MessagingException {
-        throw new MessagingException("SORT not supported");
+        return getSortedMessages(term, null);
     }
 
     @Override
     public synchronized Message[] getSortedMessages(final SortTerm[] term, final SearchTerm sterm) throws MessagingException {
-        throw new MessagingException("SORT not supported");
+        abortIdle();
+        checkOpened();
+
+        final MailboxFolder.Snapshot pinned = snapshot;
+        MockMessage[] msgs = pinned.getMessages();
+
+        if (sterm != null) {
+            // only the matches which are in the pinned snapshot
+            final Message[] matches = mailboxFolder.search(sterm, msgs);
+            msgs = new MockMessage[matches.length];
+            System.arraycopy(matches, 0, msgs, 0, matches.length);
+        }
+
+        final MockMessage[] sorted = SortKeys.sort(msgs, term);
+        final Message[] ret = new Message[sorted.length];
+
+        for (int i = 0; i < sorted.length; i++) {
+            final MockMessage m = new MockMessage(sorted[i], this);
+            m.setMessageNumber(pinned.getMessageNumber(sorted[i].getMockid()));
+            ret[i] = m;
+        }
+
+        return ret;
     }
 
     @Override
@@ -533,7 +578,7 @@ public class IMAPMockFolder extends IMAPFolder implements MailboxEventListener {
     public synchronized int getUnreadMessageCount() throws MessagingException {
         abortIdle();
         checkExists();
-        return mailboxFolder.getByFlags(new Flags(Flags.Flag.SEEN), false).length;
+        return mailboxFolder.getCountByFlags(new Flags(Flags.Flag.SEEN), false);
     }
 
     @Override
@@ -599,6 +644,8 @@ public class IMAPMockFolder extends IMAPFolder implements MailboxEventListener {
             idleState = RUNNING;
         }
 
+        advanceSnapshot();
+
         logger.trace("return from idle()");
     }
 
@@ -654,8 +701,8 @@ public class IMAPMockFolder extends IMAPFolder implements MailboxEventListener {
     }
 
     @Override
-    public void messageAdded(final MailboxFolder mf, final MockMessage msg) {
-        notifyMessageAddedListeners(new Message[] { msg });
+    public void messagesAdded(final MailboxFolder mf, final MockMessage[] msgs) {
+        notifyMessageAddedListeners(msgs.clone());
         idleLock.release();
 
     }
@@ -667,7 +714,7 @@ public class IMAPMockFolder extends IMAPFolder implements MailboxEventListener {
     }
 
     @Override
-    public void messageExpunged(final MailboxFolder mf, final MockMessage msg, final boolean removed) {
+    public void messagesExpunged(final MailboxFolder mf, final MockMessage[] msgs, final boolean removed) {
         idleLock.release();
 
     }
@@ -678,6 +725,7 @@ public class IMAPMockFolder extends IMAPFolder implements MailboxEventListener {
         checkExists();
         opened = true;
         openMode = mode;
+        snapshot = mailboxFolder.getSnapshot();
         logger.debug("Open folder " + getFullName() + " (" + objectId + ")");
         notifyConnectionListeners(ConnectionEvent.OPENED);
     }
@@ -685,13 +733,34 @@ public class IMAPMockFolder extends IMAPFolder implements MailboxEventListener {
     @Override
     public synchronized List<MailEvent> open(final int mode, final ResyncData rd) throws MessagingException {
 
-        if (rd == null) {
-            open(mode);
+        open(mode);
+
+        if (rd == null || rd == ResyncData.CONDSTORE) {
             return null;
         }
 
-        throw new MessagingException("CONDSTORE and QRESYNC not supported");
+        final List<MailEvent> events = new ArrayList<MailEvent>();
+
+        // the client's state is from another UID generation, it has to sync from scratch
+        if (rd.getUIDValidity() != mailboxFolder.getUidValidity()) {
+            return events;
+        }
+
+        final String known = ResyncData0.getUIDSet(rd);
+        final UidSet uids = known == null ? UidSet.range(1, UidSet.STAR) : known.length() == 0 ? UidSet.EMPTY : UidSet.parse(known);
+        final UidSet vanished = mailboxFolder.getExpungedSince(uids, rd.getModSeq());
+
+        if (!vanished.isEmpty()) {
+            events.add(new MessageVanishedEvent(this, vanished.toArray()));
+        }
 
+        for (final Message msg : wrap(mailboxFolder.getByIdsChangedSince(uids, rd.getModSeq()))) {
+            events.add(new MessageChangedEvent(this, MessageChangedEvent.FLAGS_CHANGED, msg));
+        }
+
+        logger.debug("QRESYNC " + getFullName() + " since " + rd.getModSeq() + ": " + vanished.size() + " vanished, " + (events.size()
+                - (vanished.isEmpty() ? 0 : 1)) + " changed");
+        return events;
     }
 
     @Override
@@ -727,15 +796,14 @@ public class IMAPMockFolder extends IMAPFolder implements MailboxEventListener {
         abortIdle();
         checkOpened();
 
-        for (final Message message : msgs) {
-
-            final Message m = mailboxFolder.getById(((MockMessage) message).getMockid());
+        final long[] uids = new long[msgs.length];
 
-            if (m != null) {
-                m.setFlags(flag, value);
-            }
+        for (int i = 0; i < msgs.length; i++) {
+            uids[i] = ((MockMessage) msgs[i]).getMockid();
         }
 
+        mailboxFolder.setFlags(UidSet.of(uids), flag, value);
+
     }
 
     @Override
@@ -749,6 +817,27 @@ public class IMAPMockFolder extends IMAPFolder implements MailboxEventListener {
         mailboxFolder.setSubscribed(subscribe);
     }
 
+    private AppendUID[] toAppendUIDs(final Message[] added) {
+        final long uidValidity = mailboxFolder.getUidValidity();
+        final AppendUID[] uids = new AppendUID[added.length];
+
+        for (int i = 0; i < added.length; i++) {
+            uids[i] = new AppendUID(uidValidity, ((MockMessage) added[i]).getMockid());
+        }
+
+        return uids;
+    }
+
+    private static MimeMessage[] toMimeMessages(final Message[] msgs) {
+        final MimeMessage[] ret = new MimeMessage[msgs.length];
+
+        for (int i = 0; i < msgs.length; i++) {
+            ret[i] = (MimeMessage) msgs[i];
+        }
+
+        return ret;
+    }
+
     @Override
     public void uidInvalidated() {
 
@@ -25,9 +25,13 @@
  **********************************************************************************************************************/
 package de.saly.javamail.mock2;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import javax.mail.Folder;
@@ -40,6 +44,8 @@ import javax.mail.event.ConnectionEvent;
 import com.sun.mail.imap.IMAPStore;
 
 public class IMAPMockStore extends IMAPStore {
+    private static final Set<String> CAPABILITIES = new HashSet<String>(Arrays.asList("IMAP4", "IMAP4REV1", "IDLE", "ID", "SORT",
+            "CONDSTORE", "QRESYNC"));
     private boolean connected;
     protected final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(this.getClass());
     // private IMAPMockFolder folder;
@@ -155,9 +161,7 @@ public class IMAPMockStore extends IMAPStore {
      */
     @Override
     public synchronized boolean hasCapability(final String capability) throws MessagingException {
-        return capability != null
-                && (capability.toLowerCase().startsWith("IMAP4") || capability.toLowerCase().startsWith("IDLE") || capability.toLowerCase()
-                        .startsWith("ID"));
+        return capability != null && CAPABILITIES.contains(capability.toUpperCase(Locale.ENGLISH));
     }
 
     @Override
@@ -27,19 +27,34 @@ package de.saly.javamail.mock2;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Date;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeSet;
-
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.mail.FetchProfile;
 import javax.mail.Flags;
 import javax.mail.Flags.Flag;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.UIDFolder;
 import javax.mail.internet.MimeMessage;
+import javax.mail.search.BodyTerm;
 import javax.mail.search.SearchTerm;
+import javax.mail.search.SentDateTerm;
 
 public class MailboxFolder implements MockMessage.FlagChangeListener {
 
@@ -51,7 +66,7 @@ public class MailboxFolder implements MockMessage.FlagChangeListener {
 
         void folderRenamed(String from, MailboxFolder to);
 
-        void messageAdded(MailboxFolder mf, MockMessage msg);
+        void messagesAdded(MailboxFolder mf, MockMessage[] msgs);
 
         void messageChanged(MailboxFolder mf, MockMessage msg, boolean headerChanged, boolean flagsChanged); // TODO
                                                                                                              // header
@@ -64,31 +79,234 @@ public class MailboxFolder implements MockMessage.FlagChangeListener {
                                                                                                              // is
                                                                                                              // readonly?
 
-        void messageExpunged(MailboxFolder mf, MockMessage msg, boolean removed);
+        void messagesExpunged(MailboxFolder mf, MockMessage[] msgs, boolean removed);
 
         void uidInvalidated();
 
     }
 
+    // shared by all folders, the threads are created on the first parallel search
+    private static final class SearchExecutor {
+        private static final ExecutorService INSTANCE = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread thread = new Thread(r, "javamail-mock2-search-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Immutable copy of the messages and their flags at one version of a folder. A snapshot never changes once taken,
+     * so it can be iterated without holding any lock. The messages themselves are the live ones.
+     */
+    public static final class Snapshot {
+        private final FlagIndex.Frozen flags;
+        private final MockMessage[] messages;
+        private final long[] uids;
+        private final long uidNext;
+        private final long uidValidity;
+        private final long version;
+
+        private Snapshot(final long version, final MockMessage[] messages, final FlagIndex.Frozen flags, final long uidNext,
+                final long uidValidity) {
+            this.version = version;
+            this.messages = messages;
+            this.flags = flags;
+            this.uidNext = uidNext;
+            this.uidValidity = uidValidity;
+            this.uids = new long[messages.length];
+
+            for (int i = 0; i < messages.length; i++) {
+                uids[i] = messages[i].getMockid();
+            }
+        }
+
+        private void checkMsgNum(final int msgnum) {
+            if (msgnum < 1 || msgnum > messages.length) {
+                throw new ArrayIndexOutOfBoundsException("message number (" + msgnum + ") out of bounds (" + messages.length + ")");
+            }
+        }
+
+        /**
+         * @return the message with the given UID or null
+         */
+        public MockMessage getById(final long uid) {
+            final int msgnum = getMessageNumber(uid);
+            return msgnum < 0 ? null : messages[msgnum - 1];
+        }
+
+        public int getCountByFlags(final Flags flags, final boolean mustSet) {
+            final int count = flags.getSystemFlags().length + flags.getUserFlags().length == 0 ? messages.length : this.flags
+                    .count(flags);
+            return mustSet ? count : messages.length - count;
+        }
+
+        /**
+         * @return the flags the message had when the snapshot was taken
+         */
+        public Flags getFlags(final int msgnum) {
+            checkMsgNum(msgnum);
+            return flags.getFlags(msgnum - 1);
+        }
+
+        public MockMessage getMessage(final int msgnum) {
+            checkMsgNum(msgnum);
+            return messages[msgnum - 1];
+        }
+
+        public int getMessageCount() {
+            return messages.length;
+        }
+
+        /**
+         * @return the message number of the message with the given UID or -1
+         */
+        public int getMessageNumber(final long uid) {
+            final int pos = Arrays.binarySearch(uids, uid);
+            return pos < 0 ? -1 : pos + 1;
+        }
+
+        /**
+         * @return the messages ordered by message number
+         */
+        public MockMessage[] getMessages() {
+            return messages.clone();
+        }
+
+        public long getUidNext() {
+            return uidNext;
+        }
+
+        public long getUidValidity() {
+            return uidValidity;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public boolean isSet(final int msgnum, final Flag flag) {
+            checkMsgNum(msgnum);
+            return flags.isSet(msgnum - 1, flag);
+        }
+    }
+
+    /**
+     * Immutable STATUS-like summary of a folder, taken atomically.
+     */
+    public static final class Status {
+        private final int deletedCount;
+        private final int messageCount;
+        private final int recentCount;
+        private final long sizeInBytes;
+        private final long uidNext;
+        private final long uidValidity;
+        private final int unseenCount;
+
+        private Status(final int messageCount, final int recentCount, final int unseenCount, final int deletedCount,
+                final long sizeInBytes, final long uidNext, final long uidValidity) {
+            this.messageCount = messageCount;
+            this.recentCount = recentCount;
+            this.unseenCount = unseenCount;
+            this.deletedCount = deletedCount;
+            this.sizeInBytes = sizeInBytes;
+            this.uidNext = uidNext;
+            this.uidValidity = uidValidity;
+        }
+
+        public int getDeletedCount() {
+            return deletedCount;
+        }
+
+        public int getMessageCount() {
+            return messageCount;
+        }
+
+        public int getRecentCount() {
+            return recentCount;
+        }
+
+        /**
+         * @return sum of the sizes of all messages with a known size
+         */
+        public long getSizeInBytes() {
+            return sizeInBytes;
+        }
+
+        /**
+         * @return the UID the next added message will get
+         */
+        public long getUidNext() {
+            return uidNext;
+        }
+
+        public long getUidValidity() {
+            return uidValidity;
+        }
+
+        public int getUnseenCount() {
+            return unseenCount;
+        }
+
+        @Override
+        public String toString() {
+            return "Status [messageCount=" + messageCount + ", recentCount=" + recentCount + ", unseenCount=" + unseenCount
+                    + ", deletedCount=" + deletedCount + ", sizeInBytes=" + sizeInBytes + ", uidNext=" + uidNext + ", uidValidity="
+                    + uidValidity + "]";
+        }
+    }
+
+    // number of expunged UIDs remembered for QRESYNC
+    private static final int EXPUNGE_JOURNAL_CAPACITY = 10000;
+
     public static final char SEPARATOR = '/';
-    private final List<MailboxFolder> children = new ArrayList<MailboxFolder>();
-    private boolean exists = true;
+    // built on first body search if enabled in the mailbox, null otherwise
+    private BodyIndex bodyIndex;
+    private final List<MailboxFolder> children = new CopyOnWriteArrayList<MailboxFolder>();
+    private volatile boolean exists = true;
+    private final ExpungeJournal expungeJournal = new ExpungeJournal(EXPUNGE_JOURNAL_CAPACITY);
+    private final FlagIndex flagIndex = new FlagIndex();
+    // built on first search if enabled in the mailbox, null otherwise
+    private HeaderIndex headerIndex;
+    // CONDSTORE mod-sequence of the last change, every append, flag change and expunge takes the next one
+    private long highestModSeq = 1;
+    // guards messages, the indexes, highestModSeq, totalSize, uidValidity, uniqueMessageId and version
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
     protected final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(this.getClass());
 
     private final MockMailbox mailbox;
 
-    private volatile List<MailboxEventListener> mailboxEventListeners = Collections.synchronizedList(new ArrayList<MailboxEventListener>());
-
-    private final Map<Long, MockMessage> messages = new HashMap<Long, MockMessage>();
-    private String name;
-    private MailboxFolder parent;
+    private final List<MailboxEventListener> mailboxEventListeners = new CopyOnWriteArrayList<MailboxEventListener>();
+
+    private final UidIndex messages = new UidIndex();
+    // current mod-sequence of each message to its UID, so changes since a mod-sequence are a tail of the map
+    private final TreeMap<Long, Long> modSeqIndex = new TreeMap<Long, Long>();
+    private volatile String name;
+    private volatile MailboxFolder parent;
+    // UIDs by INTERNALDATE and size, always maintained
+    private final RangeIndex receivedDateIndex = new RangeIndex();
+    // UIDs by Date header, built on the first search by it because it needs the headers parsed, null before
+    private RangeIndex sentDateIndex;
+    private final SearchCache searchCache = new SearchCache();
     private boolean simulateError = false;
+    // last published snapshot, rebuilt on demand once version has moved on
+    private volatile Snapshot snapshot;
+    private final RangeIndex sizeIndex = new RangeIndex();
     private boolean subscribed;
+    private long totalSize;
 
     private long uidValidity = 50;
 
     private long uniqueMessageId = 10;
 
+    // incremented on every change of the messages or their flags, only written under the write lock
+    private volatile long version;
+
     protected MailboxFolder(final String name, final MockMailbox mb, final boolean exists) {
         super();
 
@@ -104,30 +322,122 @@ public class MailboxFolder implements MockMessage.FlagChangeListener {
         logger.debug("Created " + name + " (exists: " + exists + ")");
     }
 
-    public synchronized Message add(final MimeMessage e) throws MessagingException {
+    public Message add(final MimeMessage e) throws MessagingException {
+        return addAll(new MimeMessage[] { e })[0];
+    }
+
+    /**
+     * Adds all messages at once. They get a contiguous block of UIDs and listeners are notified once for the whole
+     * batch.
+     */
+    public Message[] addAll(final MimeMessage[] msgs) throws MessagingException {
         checkExists();
 
-        uniqueMessageId++;
+        final String fullName = getFullName();
+        final Flags recent = new Flags(Flag.RECENT);
+        final MockMessage[] added = new MockMessage[msgs.length];
+        final int[] sizes = new int[msgs.length];
+        final Date received = new Date();
+        final List<Set<String>> tokens = mailbox.isBodyIndexEnabled() ? new ArrayList<Set<String>>(msgs.length) : null;
+        final long[] sentDates;
+
+        lock.readLock().lock();
+        try {
+            sentDates = sentDateIndex == null ? null : new long[msgs.length];
+        } finally {
+            lock.readLock().unlock();
+        }
 
-        final MockMessage mockMessage = new MockMessage(e, uniqueMessageId, this, this);
+        // copying is the expensive part, the headers are only parsed here for the Date header and the tokens if those
+        // indexes are in use. Both need the locks of the messages, so they are done without the folder lock
+        for (int i = 0; i < msgs.length; i++) {
+            final MockMessage mockMessage = new MockMessage(msgs[i], 0, this, this);
+            mockMessage.setSpecialHeader("X-Mock-Folder", fullName);
+            mockMessage.setSpecialFlags(recent);
+            mockMessage.setReceivedDate(received);
+            sizes[i] = mockMessage.getSize();
+            added[i] = mockMessage;
+
+            if (sentDates != null) {
+                sentDates[i] = sentDateKey(mockMessage);
+            }
 
-        mockMessage.setSpecialHeader("Message-ID", String.valueOf(uniqueMessageId));
-        mockMessage.setSpecialHeader("X-Mock-Folder", getFullName());
-        mockMessage.setFlags(new Flags(Flag.RECENT), true);
-        // unread.add(e);
+            if (tokens != null) {
+                tokens.add(BodyIndex.tokenize(mockMessage));
+            }
+        }
 
-        messages.put(uniqueMessageId, mockMessage);
+        lock.writeLock().lock();
+        try {
+            if (!exists) {
+                // the messages are not visible to anyone else yet
+                releaseBodies(added);
+            }
 
-        for (final MailboxEventListener mailboxEventListener : mailboxEventListeners) {
-            mailboxEventListener.messageAdded(this, mockMessage);
-        }
+            checkExists();
 
-        logger.debug("Message ID " + uniqueMessageId + " to " + getFullName() + " added for user " + mailbox.getAddress());
+            if (tokens == null) {
+                // disabled in the meantime
+                bodyIndex = null;
+            }
+
+            if (sentDates == null) {
+                // built in the meantime
+                sentDateIndex = null;
+            }
+
+            for (int i = 0; i < added.length; i++) {
+                final MockMessage mockMessage = added[i];
+                uniqueMessageId++;
+                mockMessage.setMockid(uniqueMessageId);
+                mockMessage.setSpecialHeader("Message-ID", String.valueOf(uniqueMessageId));
+
+                final int size = sizes[i];
+                highestModSeq++;
+                messages.add(mockMessage, size, sentDates == null ? UidIndex.NO_DATE : sentDates[i], highestModSeq);
+                modSeqIndex.put(highestModSeq, uniqueMessageId);
+
+                if (size > 0) {
+                    totalSize += size;
+                }
 
-        return mockMessage;
+                flagIndex.add(messages.slotCount() - 1, mockMessage.getFlags());
+                receivedDateIndex.add(received.getTime(), uniqueMessageId);
+                sizeIndex.add(size, uniqueMessageId);
+
+                if (sentDateIndex != null && sentDates[i] != UidIndex.NO_DATE) {
+                    sentDateIndex.add(sentDates[i], uniqueMessageId);
+                }
+
+                if (headerIndex != null) {
+                    headerIndex.add(mockMessage);
+                }
+
+                if (bodyIndex != null) {
+                    bodyIndex.add(uniqueMessageId, tokens.get(i));
+                }
+            }
+
+            if (added.length == 0) {
+                return added;
+            }
+
+            version++;
+
+            for (final MailboxEventListener mailboxEventListener : mailboxEventListeners) {
+                mailboxEventListener.messagesAdded(this, added);
+            }
+
+            logger.debug(added.length + " messages (IDs " + added[0].getMockid() + " to " + uniqueMessageId + ") to " + fullName
+                    + " added for user " + mailbox.getAddress());
+
+            return added;
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
-    public synchronized void addMailboxEventListener(final MailboxEventListener l) {
+    public void addMailboxEventListener(final MailboxEventListener l) {
         if (l != null) {
             mailboxEventListeners.add(l);
         }
@@ -159,16 +469,22 @@ public class MailboxFolder implements MockMessage.FlagChangeListener {
         }
     }
 
-    public synchronized MailboxFolder create() {
-        if (isExists()) {
-            throw new IllegalStateException("already exists");
-        }
-        checkFolderName(this.name);
+    public MailboxFolder create() {
+        lock.writeLock().lock();
+        try {
+            if (isExists()) {
+                throw new IllegalStateException("already exists");
+            }
+            checkFolderName(this.name);
 
-        exists = true;
+            exists = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
 
         // TODO set parent and/or children to exists?
 
+        // the parent is created without holding our lock, folder locks are never nested
         if (parent != null && !parent.isExists()) {
             parent.create();
         }
@@ -192,7 +508,7 @@ public class MailboxFolder implements MockMessage.FlagChangeListener {
 
     }
 
-    public synchronized void deleteFolder(final boolean recurse) {
+    public void deleteFolder(final boolean recurse) {
         checkExists();
         checkFolderName(this.name);
 
@@ -200,8 +516,35 @@ public class MailboxFolder implements MockMessage.FlagChangeListener {
             throw new IllegalArgumentException("root cannot be deleted");
         }
 
-        messages.clear();
-        // unread.clear();
+        final MockMessage[] removed;
+
+        lock.writeLock().lock();
+        try {
+            removed = messages.toArray(0, messages.slotCount());
+
+            // removed messages keep the number they had
+            for (int i = 0; i < removed.length; i++) {
+                removed[i].setMessageNumber(i + 1);
+            }
+
+            messages.clear();
+            flagIndex.clear();
+            modSeqIndex.clear();
+            expungeJournal.clear(highestModSeq);
+            receivedDateIndex.clear();
+            sentDateIndex = null;
+            sizeIndex.clear();
+            searchCache.clear();
+            headerIndex = null;
+            bodyIndex = null;
+            totalSize = 0;
+            version++;
+            // unread.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        releaseBodies(removed);
 
         if (recurse) {
             for (final MailboxFolder mf : getChildren()) {
@@ -248,184 +591,317 @@ public class MailboxFolder implements MockMessage.FlagChangeListener {
         return true;
     }
 
-    public synchronized Message[] expunge() throws MessagingException {
-        checkExists();
-        final List<Message> expunged = new ArrayList<Message>();
-        for (final Message msg : getByFlags(new Flags(Flag.DELETED), true)) {
+    public Message[] expunge() throws MessagingException {
+        return expunge((UidSet) null);
+    }
 
-            expunged.add(messages.remove(((MockMessage) msg).getMockid()));
-            ((MockMessage) msg).setExpunged(true);
+    public Message[] expunge(final Message[] msgs) throws MessagingException {
+        final long[] toExpunge = new long[msgs.length];
 
-            for (final MailboxEventListener mailboxEventListener : mailboxEventListeners) {
-                mailboxEventListener.messageExpunged(this, (MockMessage) msg, true);
-            }
+        for (int i = 0; i < msgs.length; i++) {
+            toExpunge[i] = ((MockMessage) msgs[i]).getMockid();
         }
 
-        logger.debug(expunged.size() + " messages expunged (deleted) from" + getFullName());
-        return expunged.toArray(new Message[expunged.size()]);
+        return expunge(UidSet.of(toExpunge));
+    }
+
+    /**
+     * Removes the messages with the given UIDs which are flagged as deleted (UID EXPUNGE).
+     *
+     * @param uids
+     *            the UIDs or null for all messages
+     */
+    public Message[] expunge(final UidSet uids) throws MessagingException {
+        final MockMessage[] expunged;
+
+        lock.writeLock().lock();
+        try {
+            checkExists();
+            expunged = expungeDeleted(uids);
+        } finally {
+            lock.writeLock().unlock();
+        }
 
+        releaseBodies(expunged);
+        return expunged;
     }
 
-    public synchronized Message[] expunge(final Message[] msgs) throws MessagingException {
-        checkExists();
-        final List<Long> toExpunge = new ArrayList<Long>();
+    /**
+     * Removes all messages flagged as deleted, restricted to the given UIDs if not null. Depending on which side is
+     * smaller either the deleted bitmap or the UID ranges are walked, so the cost is bound by the smaller one.
+     */
+    private MockMessage[] expungeDeleted(final UidSet uids) throws MessagingException {
+        final int deletedCount = flagIndex.count(new Flags(Flag.DELETED));
+        final UidSet toExpunge = uids == null ? null : uids.resolveStar(messages.lastUid());
+        final MockMessage[] candidates = new MockMessage[toExpunge == null ? deletedCount : (int) Math.min(deletedCount,
+                toExpunge.size())];
+        int count = 0;
+
+        if (toExpunge != null && toExpunge.size() < deletedCount) {
+            // merge join of the ranges against the uid index
+            int slot = 0;
+            for (int range = 0; range < toExpunge.getRangeCount() && slot < messages.slotCount(); range++) {
+                final int from = messages.lowerBound(toExpunge.getStart(range), slot);
+                slot = messages.upperBound(toExpunge.getEnd(range), from);
+
+                for (int i = from; i < slot; i++) {
+                    if (messages.getAtSlot(i) != null && flagIndex.isSet(i, Flag.DELETED)) {
+                        candidates[count] = removeAtSlot(i, count);
+                        count++;
+                    }
+                }
+            }
+        } else {
+            for (int slot = flagIndex.nextSetSlot(Flag.DELETED, 0); slot >= 0; slot = flagIndex.nextSetSlot(Flag.DELETED, slot + 1)) {
+                if (toExpunge == null || toExpunge.contains(messages.getAtSlot(slot).getMockid())) {
+                    candidates[count] = removeAtSlot(slot, count);
+                    count++;
+                }
+            }
+        }
 
-        for (final Message msg : msgs) {
-            toExpunge.add(((MockMessage) msg).getMockid());
+        final MockMessage[] expunged = count == candidates.length ? candidates : Arrays.copyOf(candidates, count);
+
+        if (messages.shouldCompact()) {
+            flagIndex.compact(messages);
+            messages.compact();
         }
 
-        final List<Message> expunged = new ArrayList<Message>();
-        for (final Message msg : getByFlags(new Flags(Flag.DELETED), true)) {
+        if (expunged.length > 0) {
+            version++;
+            highestModSeq++;
+
+            for (final MockMessage msg : expunged) {
+                expungeJournal.add(highestModSeq, msg.getMockid());
+            }
 
-            if (!toExpunge.contains(new Long(((MockMessage) msg).getMockid()))) {
-                continue;
+            if (headerIndex != null) {
+                headerIndex.removed(expunged.length);
             }
 
-            expunged.add(messages.remove(((MockMessage) msg).getMockid()));
-            ((MockMessage) msg).setExpunged(true);
+            for (final MockMessage msg : expunged) {
+                msg.setExpunged(true);
+            }
 
             for (final MailboxEventListener mailboxEventListener : mailboxEventListeners) {
-                mailboxEventListener.messageExpunged(this, (MockMessage) msg, true);
+                mailboxEventListener.messagesExpunged(this, expunged, true);
             }
         }
 
-        logger.debug(expunged.size() + " messages expunged (deleted) from " + getFullName());
-        return expunged.toArray(new Message[expunged.size()]);
-
+        logger.debug(expunged.length + " messages expunged (deleted) from " + getFullName());
+        return expunged;
     }
 
-    public synchronized Message[] getByFlags(final Flags flags, final boolean mustSet /*final Folder folder*/) throws MessagingException {
-        checkExists();
-        final List<MockMessage> sms = new ArrayList<MockMessage>();
-        int num = 0;
-
-        for (final MockMessage mockMessage : new TreeSet<MockMessage>(messages.values())) {
+    public Message[] getByFlags(final Flags flags, final boolean mustSet /*final Folder folder*/) throws MessagingException {
+        lock.readLock().lock();
+        try {
+            checkExists();
+            final BitSet slots = mustSet ? flagIndex.matching(flags) : flagIndex.notMatching(flags);
+            final Message[] sms = new Message[slots.cardinality()];
+            int i = 0;
 
-            if (mustSet && mockMessage.getFlags().contains(flags) || !mustSet && !mockMessage.getFlags().contains(flags)) {
-                mockMessage.setMessageNumber(++num);
+            for (int slot = slots.nextSetBit(0); slot >= 0; slot = slots.nextSetBit(slot + 1)) {
                 // mockMessage.setFolder(folder);
-                sms.add(mockMessage);
+                sms[i++] = messages.getAtSlot(slot);
             }
 
+            logger.debug("getByFlags() for " + getFullName() + " returns " + sms.length);
+            return sms;
+        } finally {
+            lock.readLock().unlock();
         }
-        logger.debug("getByFlags() for " + getFullName() + " returns " + sms.size());
-        return sms.toArray(new Message[sms.size()]);
     }
 
-    public synchronized Message getById(final long id /*final Folder folder*/) {
-        checkExists();
-        final Message m = messages.get(id);
+    public Message getById(final long id /*final Folder folder*/) {
+        lock.readLock().lock();
+        try {
+            checkExists();
+            final Message m = messages.get(id);
 
-        if (m == null) {
+            if (m == null) {
 
-            logger.debug("No message with id " + id + ", return null");
-            return null;
+                logger.debug("No message with id " + id + ", return null");
+                return null;
 
-        }
+            }
 
-        // ((MockMessage) m).setFolder(folder);
-        logger.debug("getById(" + id + ") for " + getFullName() + " returns successful");
+            // ((MockMessage) m).setFolder(folder);
+            logger.debug("getById(" + id + ") for " + getFullName() + " returns successful");
 
-        return m;
+            return m;
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     // private List<Message> unread = new ArrayList<Message>();
 
-    public synchronized Message[] getByIds(final long start, final long end/* final Folder folder*/) {
-        checkExists();
-        final List<MockMessage> sms = new ArrayList<MockMessage>();
-        int num = 0;
-
-        MockMessage lastMsg = null;
-
-        for (final MockMessage mockMessage : new TreeSet<MockMessage>(messages.values())) {
-
-            lastMsg = mockMessage;
+    public Message[] getByIds(final long start, final long end/* final Folder folder*/) {
+        lock.readLock().lock();
+        try {
+            checkExists();
+            final int from;
+            final int to;
 
             if (end == UIDFolder.LASTUID) {
-                if (getMessageCount() != 1 && mockMessage.getMockid() < start) { // TODO
-                                                                                 // check?
-                    continue;
-                }
+                from = messages.size() != 1 ? messages.lowerBound(start) : 0; // TODO
+                                                                               // check?
+                to = messages.slotCount();
             } else {
-                if (mockMessage.getMockid() < start || mockMessage.getMockid() > end) {
-                    continue;
-                }
+                from = messages.lowerBound(start);
+                to = Math.max(from, messages.upperBound(end));
             }
 
-            mockMessage.setMessageNumber(++num);
-            // mockMessage.setFolder(folder);
-            sms.add(mockMessage);
-        }
+            Message[] sms = messages.toArray(from, to);
+
+            if (end == UIDFolder.LASTUID && sms.length == 0 && !messages.isEmpty()) {
+                // no message with uid >= start, return the last one
+                sms = new Message[] { messages.getByMsgNum(messages.size()) };
+            }
 
-        if (end == UIDFolder.LASTUID && sms.size() == 0) {
-            lastMsg.setMessageNumber(++num);
-            // lastMsg.setFolder(folder);
-            sms.add(lastMsg);
+            logger.debug("getByIds(" + start + "," + end + " for " + getFullName() + " returns " + sms.length);
+            return sms;
+        } finally {
+            lock.readLock().unlock();
         }
+    }
 
-        logger.debug("getByIds(" + start + "," + end + " for " + getFullName() + " returns " + sms.size());
-        return sms.toArray(new Message[sms.size()]);
+    public Message[] getByIds(final long[] id /*final Folder folder*/) {
+        return getByIds(UidSet.of(id));
     }
 
-    public synchronized Message[] getByIds(final long[] id /*final Folder folder*/) {
-        checkExists();
-        final List<Long> idlist = new ArrayList<Long>();
-        for (final long value : id) {
-            idlist.add(value);
-        }
-        final List<MockMessage> sms = new ArrayList<MockMessage>();
-        int num = 0;
+    public Message[] getByIds(final UidSet uids) {
+        lock.readLock().lock();
+        try {
+            checkExists();
+            final UidSet resolved = uids.resolveStar(messages.lastUid());
+            final List<MockMessage> sms = new ArrayList<MockMessage>();
+
+            // merge join of the ranges against the uid index, both are sorted
+            int slot = 0;
+            for (int range = 0; range < resolved.getRangeCount() && slot < messages.slotCount(); range++) {
+                final int from = messages.lowerBound(resolved.getStart(range), slot);
+                slot = messages.upperBound(resolved.getEnd(range), from);
 
-        for (final MockMessage mockMessage : new TreeSet<MockMessage>(messages.values())) {
+                for (int i = from; i < slot; i++) {
+                    final MockMessage mockMessage = messages.getAtSlot(i);
 
-            if (!idlist.contains(mockMessage.getMockid())) {
-                continue;
+                    if (mockMessage != null) {
+                        sms.add(mockMessage);
+                    }
+                }
             }
 
-            mockMessage.setMessageNumber(++num);
-            // mockMessage.setFolder(folder);
-            sms.add(mockMessage);
+            logger.debug("getByIds(" + uids + ") for " + getFullName() + " returns " + sms.size());
+            return sms.toArray(new Message[sms.size()]);
+        } finally {
+            lock.readLock().unlock();
         }
-
-        logger.debug("getByIds(" + Arrays.toString(id) + ") for " + getFullName() + " returns " + sms.size());
-        return sms.toArray(new Message[sms.size()]);
     }
 
-    public synchronized Message getByMsgNum(final int msgnum/*, final Folder folder*/) {
-        checkExists();
-        final List<MockMessage> sms = new ArrayList<MockMessage>();
+    /**
+     * Messages in the UID set which were added or had their flags changed after the given mod-sequence (CONDSTORE
+     * CHANGEDSINCE), in UID order. Takes time in the number of changes, not the number of messages.
+     */
+    public Message[] getByIdsChangedSince(final UidSet uids, final long modSeq) {
+        lock.readLock().lock();
+        try {
+            checkExists();
+            final UidSet resolved = uids.resolveStar(messages.lastUid());
+            final SortedMap<Long, Long> changes = modSeqIndex.tailMap(modSeq, false);
+            final long[] changed = new long[changes.size()];
+            int count = 0;
+
+            for (final Long uid : changes.values()) {
+                if (resolved.contains(uid)) {
+                    changed[count++] = uid;
+                }
+            }
 
-        int num = 0;
+            Arrays.sort(changed, 0, count);
+            final Message[] ret = new Message[count];
 
-        for (final MockMessage mockMessage : new TreeSet<MockMessage>(messages.values())) {
+            for (int i = 0; i < count; i++) {
+                ret[i] = messages.get(changed[i]);
+            }
 
-            mockMessage.setMessageNumber(++num);
-            // mockMessage.setFolder(folder);
-            sms.add(mockMessage);
+            logger.debug("getByIdsChangedSince(" + uids + ", " + modSeq + ") for " + getFullName() + " returns " + count);
+            return ret;
+        } finally {
+            lock.readLock().unlock();
         }
+    }
 
-        logger.debug("getByMsgNum(" + msgnum + "), size is " + sms.size());
+    public Message getByMsgNum(final int msgnum/*, final Folder folder*/) {
+        lock.readLock().lock();
+        try {
+            checkExists();
+
+            logger.debug("getByMsgNum(" + msgnum + "), size is " + messages.size());
+
+            if (msgnum - 1 < 0 || msgnum > messages.size()) {
+                throw new ArrayIndexOutOfBoundsException("message number (" + msgnum + ") out of bounds (" + messages.size() + ") for "
+                        + getFullName());
+            }
 
-        if (msgnum - 1 < 0 || msgnum > sms.size()) {
-            throw new ArrayIndexOutOfBoundsException("message number (" + msgnum + ") out of bounds (" + sms.size() + ") for "
-                    + getFullName());
+            return messages.getByMsgNum(msgnum);
+        } finally {
+            lock.readLock().unlock();
         }
+    }
 
-        final Message m = sms.get(msgnum - 1);
-        return m;
+    /**
+     * Same as {@code getByFlags(flags, mustSet).length} but without touching the messages.
+     */
+    public int getCountByFlags(final Flags flags, final boolean mustSet) {
+        lock.readLock().lock();
+        try {
+            checkExists();
+            final int count = flagIndex.count(flags);
+            return mustSet ? count : flagIndex.size() - count;
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     /**
      * 
      * @return Unmodifieable new list copy
      */
-    public synchronized List<MailboxFolder> getChildren() {
+    public List<MailboxFolder> getChildren() {
         checkExists();
         return Collections.unmodifiableList(new ArrayList<MailboxFolder>(children));
     }
 
-    public synchronized String getFullName() {
+    /**
+     * UIDs in the given set which were expunged after the given mod-sequence (QRESYNC VANISHED). If the expunge journal
+     * does not reach back that far, all UIDs of the set which were handed out but are gone are returned.
+     */
+    public UidSet getExpungedSince(final UidSet uids, final long modSeq) {
+        lock.readLock().lock();
+        try {
+            checkExists();
+            final long[] expunged = expungeJournal.since(modSeq);
+
+            if (expunged != null) {
+                return uids.resolveStar(uniqueMessageId).intersect(UidSet.of(expunged));
+            }
+
+            final UidList live = new UidList();
+
+            for (int slot = 0; slot < messages.slotCount(); slot++) {
+                if (messages.getAtSlot(slot) != null) {
+                    live.add(messages.uidAtSlot(slot));
+                }
+            }
+
+            return uids.resolveStar(uniqueMessageId).intersect(live.toUidSet().complement(uniqueMessageId));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public String getFullName() {
         // checkExists();
         if (isRoot()) {
             return "";
@@ -435,6 +911,18 @@ public class MailboxFolder implements MockMessage.FlagChangeListener {
 
     }
 
+    /**
+     * @return the mod-sequence of the last append, flag change or expunge (CONDSTORE HIGHESTMODSEQ)
+     */
+    public long getHighestModSeq() {
+        lock.readLock().lock();
+        try {
+            return highestModSeq;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
     /**
      * @return the mailbox
      */
@@ -442,25 +930,46 @@ public class MailboxFolder implements MockMessage.FlagChangeListener {
         return mailbox;
     }
 
-    public synchronized int getMessageCount() {
-        checkExists();
-        logger.debug("getMessageCount() for " + getFullName() + " returns " + messages.size());
-        return messages.size();
+    public int getMessageCount() {
+        lock.readLock().lock();
+        try {
+            checkExists();
+            logger.debug("getMessageCount() for " + getFullName() + " returns " + messages.size());
+            return messages.size();
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
-    public synchronized Message[] getMessages(/*final Folder folder*/) {
-        checkExists();
-        final List<MockMessage> sms = new ArrayList<MockMessage>();
-        int num = 0;
+    public Message[] getMessages(/*final Folder folder*/) {
+        final MockMessage[] sms = getSnapshot().getMessages();
+        logger.debug("getMessages() for " + getFullName() + " returns " + sms.length);
+        return sms;
+    }
 
-        for (final MockMessage mockMessage : new TreeSet<MockMessage>(messages.values())) {
+    /**
+     * @return the current message number of the message or -1 if it is not (or no longer) in this folder
+     */
+    int getMessageNumber(final MockMessage msg) {
+        lock.readLock().lock();
+        try {
+            return messages.getMsgNum(msg.getMockid());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
 
-            mockMessage.setMessageNumber(++num);
-            // mockMessage.setFolder(folder);
-            sms.add(mockMessage);
+    /**
+     * @return the current mod-sequence of the message or -1 if it is not stored here
+     */
+    long getModSeq(final MockMessage msg) {
+        lock.readLock().lock();
+        try {
+            final int slot = messages.slotOf(msg.getMockid());
+            return slot < 0 ? -1 : messages.modSeqAtSlot(slot);
+        } finally {
+            lock.readLock().unlock();
         }
-        logger.debug("getMessages() for " + getFullName() + " returns " + sms.size());
-        return sms.toArray(new Message[sms.size()]);
     }
 
     public String getName() {
@@ -512,27 +1021,84 @@ public class MailboxFolder implements MockMessage.FlagChangeListener {
 
     }
 
-    public synchronized MailboxFolder getParent() {
+    public MailboxFolder getParent() {
         checkExists();
         return parent;
     }
 
-    public synchronized int getSizeInBytes() throws MessagingException {
+    /**
+     * @return an immutable snapshot of the current version of this folder, only built if the folder changed since the
+     *         last call
+     */
+    public Snapshot getSnapshot() {
         checkExists();
-        int size = 0;
+        final Snapshot current = snapshot;
+
+        if (current != null && current.getVersion() == version) {
+            return current;
+        }
 
-        for (final MockMessage mockMessage : new TreeSet<MockMessage>(messages.values())) {
+        lock.readLock().lock();
+        try {
+            checkExists();
+            final Snapshot newSnapshot = new Snapshot(version, messages.toArray(0, messages.slotCount()), flagIndex.freeze(messages),
+                    uniqueMessageId + 1, uidValidity);
+            snapshot = newSnapshot;
+            logger.debug("Snapshot version " + newSnapshot.getVersion() + " of " + getFullName() + " published");
+            return newSnapshot;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
 
-            if (mockMessage.getSize() > 0) {
-                size += mockMessage.getSize();
+    public int getSizeInBytes() throws MessagingException {
+        lock.readLock().lock();
+        try {
+            checkExists();
+            return (int) Math.min(totalSize, Integer.MAX_VALUE);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the sizes of all messages ordered by message number
+     */
+    public int[] getSizes() {
+        lock.readLock().lock();
+        try {
+            checkExists();
+            final int[] sizes = new int[messages.size()];
+            int i = 0;
+
+            for (int slot = 0; slot < messages.slotCount() && i < sizes.length; slot++) {
+                if (messages.getAtSlot(slot) != null) {
+                    sizes[i++] = messages.sizeAtSlot(slot);
+                }
             }
 
+            return sizes;
+        } finally {
+            lock.readLock().unlock();
         }
+    }
 
-        return size;
+    /**
+     * @return message count, flag counters, size and UIDs of this folder at one point in time
+     */
+    public Status getStatus() {
+        lock.readLock().lock();
+        try {
+            checkExists();
+            final int unseen = flagIndex.size() - flagIndex.count(new Flags(Flag.SEEN));
+            return new Status(messages.size(), flagIndex.count(new Flags(Flag.RECENT)), unseen, flagIndex.count(new Flags(Flag.DELETED)),
+                    totalSize, uniqueMessageId + 1, uidValidity);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
-    public synchronized long getUID(final Message msg) {
+    public long getUID(final Message msg) {
         checkExists();
         return ((MockMessage) msg).getMockid();
     }
@@ -540,16 +1106,33 @@ public class MailboxFolder implements MockMessage.FlagChangeListener {
     /**
      * @return the uidValidity
      */
-    public synchronized long getUidValidity() {
-        checkExists();
-        return uidValidity;
+    public long getUidValidity() {
+        lock.readLock().lock();
+        try {
+            checkExists();
+            return uidValidity;
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     /**
      * @return the uniqueMessageId
      */
     protected long getUniqueMessageId() {
-        return uniqueMessageId;
+        lock.readLock().lock();
+        try {
+            return uniqueMessageId;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the version of this folder, incremented on every change of the messages or their flags
+     */
+    public long getVersion() {
+        return version;
     }
 
     @Override
@@ -561,19 +1144,30 @@ public class MailboxFolder implements MockMessage.FlagChangeListener {
         return result;
     }
 
-    public synchronized boolean hasMessages() {
-        checkExists();
-        return messages.isEmpty();
+    public boolean hasMessages() {
+        lock.readLock().lock();
+        try {
+            checkExists();
+            return messages.isEmpty();
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
-    public synchronized void invalidateUid() {
-        checkExists();
-        uidValidity += 10;
+    public void invalidateUid() {
+        lock.writeLock().lock();
+        try {
+            checkExists();
+            uidValidity += 10;
+            version++;
 
-        for (final MailboxEventListener mailboxEventListener : mailboxEventListeners) {
-            mailboxEventListener.uidInvalidated();
+            for (final MailboxEventListener mailboxEventListener : mailboxEventListeners) {
+                mailboxEventListener.uidInvalidated();
+            }
+            logger.debug("UidValidity invalidated, new UidValidity is " + uidValidity);
+        } finally {
+            lock.writeLock().unlock();
         }
-        logger.debug("UidValidity invalidated, new UidValidity is " + uidValidity);
     }
 
     /**
@@ -602,7 +1196,7 @@ public class MailboxFolder implements MockMessage.FlagChangeListener {
         return subscribed;
     }
 
-    public synchronized void markMessageAsDeleted(final Message e) throws MessagingException {
+    public void markMessageAsDeleted(final Message e) throws MessagingException {
         checkExists();
         ((MockMessage) e).setFlag(Flag.DELETED, true);
         // if(mailboxEventListener!=null)
@@ -610,7 +1204,7 @@ public class MailboxFolder implements MockMessage.FlagChangeListener {
         logger.debug("Mark message " + ((MockMessage) e).getMockid() + " as deleted (Flag DELETED set)");
     }
 
-    public synchronized void markMessageAsSeen(final Message e) throws MessagingException {
+    public void markMessageAsSeen(final Message e) throws MessagingException {
         checkExists();
         ((MockMessage) e).setFlag(Flag.SEEN, true);
         // if(mailboxEventListener!=null)
@@ -627,82 +1221,555 @@ public class MailboxFolder implements MockMessage.FlagChangeListener {
 
         logger.debug("Flags of message " + msg.getMockid() + " change");
 
-        if (messages.size() > 0 && messages.get(msg.getMockid()) != null) {
+        try {
+            // the caller holds the lock of msg, so its flags are read before the folder lock is taken
+            final Flags current = msg.getFlags();
+            final MockMessage stored;
+
+            lock.writeLock().lock();
             try {
-                if (set && messages.get(msg.getMockid()).getFlags().contains(flags)) {
+                final int slot = messages.slotOf(msg.getMockid());
+
+                if (slot < 0) {
                     return;
+                }
+
+                stored = messages.getAtSlot(slot);
+
+                if (stored == msg) {
+                    flagIndex.update(slot, current);
+                    version++;
+                    highestModSeq++;
+                    modSeqIndex.remove(messages.modSeqAtSlot(slot));
+                    messages.setModSeqAtSlot(slot, highestModSeq);
+                    modSeqIndex.put(highestModSeq, msg.getMockid());
+                    return;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            // flags were changed on a copy of the stored message
+            if (set && stored.getFlags().contains(flags)) {
+                return;
+
+            }
+
+            if (set && !stored.getFlags().contains(flags)) {
+                stored.setFlags(flags, set);
+
+            }
+
+            if (!set && stored.getFlags().contains(flags)) {
+                stored.setFlags(flags, set);
+
+            }
+
+            if (!set && !stored.getFlags().contains(flags)) {
+                return;
+
+            }
+        } catch (final Exception e) {
+            logger.error("Error while changing flags " + e.toString(), e);
+        }
+
+    }
+
+    /**
+     * Runs the term on the candidates, in parallel chunks if there are enough of them. The matches keep the order of the
+     * candidates.
+     */
+    private List<MockMessage> match(final SearchTerm term, final Message[] candidates) {
+        final int cores = Runtime.getRuntime().availableProcessors();
+
+        if (candidates.length < mailbox.getParallelSearchThreshold() || cores < 2) {
+            return match(term, candidates, 0, candidates.length);
+        }
+
+        final int chunkSize = (candidates.length + cores * 4 - 1) / (cores * 4);
+        final List<Callable<List<MockMessage>>> chunks = new ArrayList<Callable<List<MockMessage>>>();
+
+        for (int from = 0; from < candidates.length; from += chunkSize) {
+            final int start = from;
+            final int end = Math.min(candidates.length, from + chunkSize);
+
+            chunks.add(new Callable<List<MockMessage>>() {
+                @Override
+                public List<MockMessage> call() {
+                    return match(term, candidates, start, end);
+                }
+            });
+        }
+
+        try {
+            final List<MockMessage> sms = new ArrayList<MockMessage>();
+
+            for (final Future<List<MockMessage>> chunk : SearchExecutor.INSTANCE.invokeAll(chunks)) {
+                sms.addAll(chunk.get());
+            }
+
+            logger.debug("search(" + term + ") on " + getFullName() + " ran in " + chunks.size() + " chunks");
+            return sms;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return match(term, candidates, 0, candidates.length);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static List<MockMessage> match(final SearchTerm term, final Message[] candidates, final int from, final int to) {
+        final List<MockMessage> sms = new ArrayList<MockMessage>();
+
+        for (int i = from; i < to; i++) {
+            if (term.match(candidates[i])) {
+                sms.add((MockMessage) candidates[i]);
+            }
+        }
+
+        return sms;
+    }
+
+    /**
+     * Prefetches the items of the profile for the messages (FETCH), in parallel chunks if there are at least as many
+     * messages as for a parallel search.
+     */
+    void prefetch(final Message[] msgs, final FetchProfile fp) throws MessagingException {
+        final int cores = Runtime.getRuntime().availableProcessors();
+
+        if (msgs.length < mailbox.getParallelSearchThreshold() || cores < 2) {
+            prefetch(msgs, fp, 0, msgs.length);
+            return;
+        }
+
+        final int chunkSize = (msgs.length + cores * 4 - 1) / (cores * 4);
+        final List<Callable<Void>> chunks = new ArrayList<Callable<Void>>();
+
+        for (int from = 0; from < msgs.length; from += chunkSize) {
+            final int start = from;
+            final int end = Math.min(msgs.length, from + chunkSize);
+
+            chunks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws MessagingException {
+                    prefetch(msgs, fp, start, end);
+                    return null;
+                }
+            });
+        }
+
+        try {
+            for (final Future<Void> chunk : SearchExecutor.INSTANCE.invokeAll(chunks)) {
+                chunk.get();
+            }
+
+            logger.debug(msgs.length + " messages of " + getFullName() + " prefetched in " + chunks.size() + " chunks");
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            prefetch(msgs, fp, 0, msgs.length);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof MessagingException) {
+                throw (MessagingException) e.getCause();
+            }
+
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static void prefetch(final Message[] msgs, final FetchProfile fp, final int from, final int to) throws MessagingException {
+        for (int i = from; i < to; i++) {
+            if (msgs[i] instanceof MockMessage) {
+                ((MockMessage) msgs[i]).prefetch(fp);
+            }
+        }
+    }
+
+    /**
+     * Builds the body index if enabled in the mailbox and one of the leaves is a BodyTerm.
+     */
+    private void prepareBodyIndex(final List<SearchTerm> leaves) {
+        if (!mailbox.isBodyIndexEnabled()) {
+            if (bodyIndex != null) {
+                lock.writeLock().lock();
+                try {
+                    bodyIndex = null;
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+
+            return;
+        }
+
+        boolean needed = false;
+
+        for (final SearchTerm leaf : leaves) {
+            needed |= leaf instanceof BodyTerm;
+        }
+
+        while (needed) {
+            lock.readLock().lock();
+            try {
+                if (bodyIndex != null) {
+                    return;
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            // tokenizing needs the message locks, so the index is built from a snapshot without the folder lock and
+            // only published if no message was added in the meantime
+            final Snapshot base = getSnapshot();
+            final BodyIndex newIndex = new BodyIndex();
+
+            for (final MockMessage msg : base.getMessages()) {
+                newIndex.add(msg.getMockid(), BodyIndex.tokenize(msg));
+            }
+
+            lock.writeLock().lock();
+            try {
+                if (!exists) {
+                    return;
+                }
+
+                if (bodyIndex == null && uniqueMessageId == base.getUidNext() - 1) {
+                    if (base.getMessageCount() != messages.size()) {
+                        // expunged in the meantime
+                        for (final MockMessage msg : base.getMessages()) {
+                            if (messages.slotOf(msg.getMockid()) < 0) {
+                                newIndex.remove(msg.getMockid());
+                            }
+                        }
+                    }
+
+                    bodyIndex = newIndex;
+                    logger.debug("Body index for " + getFullName() + " built over " + base.getMessageCount() + " messages with "
+                            + newIndex.size() + " words");
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * (Re)builds the header index if enabled in the mailbox and one of the leaves can be answered by it.
+     */
+    private void prepareHeaderIndex(final List<SearchTerm> leaves) throws MessagingException {
+        if (!mailbox.isHeaderIndexEnabled()) {
+            if (headerIndex != null) {
+                lock.writeLock().lock();
+                try {
+                    headerIndex = null;
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+
+            return;
+        }
+
+        while (true) {
+            lock.readLock().lock();
+            try {
+                checkExists();
 
+                if (headerIndex != null && !headerIndex.isStale() && headerIndex.getHeaders().equals(mailbox.getIndexedHeaders())) {
+                    return;
                 }
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            final HeaderIndex newIndex = new HeaderIndex(mailbox.getIndexedHeaders());
+            boolean needed = false;
+
+            for (final SearchTerm leaf : leaves) {
+                needed |= newIndex.isIndexable(leaf);
+            }
+
+            if (!needed) {
+                return;
+            }
+
+            // parsing the headers needs the message locks, which are taken before the folder lock when flags change.
+            // So the index is built from a snapshot without the folder lock like the body index
+            final Snapshot base = getSnapshot();
 
-                if (set && !messages.get(msg.getMockid()).getFlags().contains(flags)) {
-                    messages.get(msg.getMockid()).setFlags(flags, set);
+            for (final MockMessage msg : base.getMessages()) {
+                newIndex.add(msg);
+            }
 
+            lock.writeLock().lock();
+            try {
+                checkExists();
+
+                if (uniqueMessageId == base.getUidNext() - 1) {
+                    // no message was added, so all messages expunged in the meantime were in the snapshot
+                    newIndex.removed(base.getMessageCount() - messages.size());
+                    headerIndex = newIndex;
+                    logger.debug("Header index for " + getFullName() + " built over " + base.getMessageCount() + " messages");
+                    return;
                 }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
 
-                if (!set && messages.get(msg.getMockid()).getFlags().contains(flags)) {
-                    messages.get(msg.getMockid()).setFlags(flags, set);
+    /**
+     * Builds the sent date index if one of the leaves is a SentDateTerm. Once built, appending keeps it up to date.
+     */
+    private void prepareSentDateIndex(final List<SearchTerm> leaves) throws MessagingException {
+        boolean needed = false;
 
+        for (final SearchTerm leaf : leaves) {
+            needed |= leaf instanceof SentDateTerm;
+        }
+
+        while (needed) {
+            lock.readLock().lock();
+            try {
+                if (sentDateIndex != null) {
+                    return;
                 }
+            } finally {
+                lock.readLock().unlock();
+            }
 
-                if (!set && !messages.get(msg.getMockid()).getFlags().contains(flags)) {
+            // built from a snapshot without the folder lock like the body index
+            final Snapshot base = getSnapshot();
+            final MockMessage[] msgs = base.getMessages();
+            final long[] sentDates = new long[msgs.length];
+
+            for (int i = 0; i < msgs.length; i++) {
+                sentDates[i] = sentDateKey(msgs[i]);
+            }
+
+            lock.writeLock().lock();
+            try {
+                if (!exists) {
                     return;
+                }
 
+                if (sentDateIndex == null && uniqueMessageId == base.getUidNext() - 1) {
+                    final RangeIndex newIndex = new RangeIndex();
+
+                    for (int i = 0; i < msgs.length; i++) {
+                        final int slot = messages.slotOf(msgs[i].getMockid());
+
+                        // expunged in the meantime
+                        if (slot < 0) {
+                            continue;
+                        }
+
+                        messages.setSentDateAtSlot(slot, sentDates[i]);
+
+                        if (sentDates[i] != UidIndex.NO_DATE) {
+                            newIndex.add(sentDates[i], msgs[i].getMockid());
+                        }
+                    }
+
+                    sentDateIndex = newIndex;
+                    logger.debug("Sent date index for " + getFullName() + " built over " + msgs.length + " messages");
                 }
-            } catch (final Exception e) {
-                logger.error("Error while changing flags " + e.toString(), e);
+            } finally {
+                lock.writeLock().unlock();
             }
         }
+    }
+
+    private static void releaseBodies(final MockMessage[] removed) {
+        for (final MockMessage msg : removed) {
+            msg.releaseBody();
+        }
+    }
+
+    /**
+     * @param removedBefore
+     *            the number of messages removed from lower slots by the same expunge, the message keeps the number it
+     *            had before the expunge
+     */
+    private MockMessage removeAtSlot(final int slot, final int removedBefore) throws MessagingException {
+        final MockMessage msg = messages.getAtSlot(slot);
+        msg.setMessageNumber(messages.msgNumAtSlot(slot) + removedBefore);
+        final int size = messages.sizeAtSlot(slot);
+        final long sentDate = messages.sentDateAtSlot(slot);
+
+        if (size > 0) {
+            totalSize -= size;
+        }
+
+        modSeqIndex.remove(messages.modSeqAtSlot(slot));
+        messages.removeAtSlot(slot);
+        flagIndex.remove(slot);
+        sizeIndex.remove(size, msg.getMockid());
+
+        if (msg.getReceivedDate() != null) {
+            receivedDateIndex.remove(msg.getReceivedDate().getTime(), msg.getMockid());
+        }
+
+        if (sentDateIndex != null && sentDate != UidIndex.NO_DATE) {
+            sentDateIndex.remove(sentDate, msg.getMockid());
+        }
+
+        if (bodyIndex != null) {
+            bodyIndex.remove(msg.getMockid());
+        }
 
+        return msg;
     }
 
-    public synchronized void removeMailboxEventListener(final MailboxEventListener l) {
+    public void removeMailboxEventListener(final MailboxEventListener l) {
         if (l != null) {
             mailboxEventListeners.remove(l);
         }
     }
 
-    public synchronized void renameFolder(final String newName) {
-        checkExists();
-        checkFolderName(this.name);
-        checkFolderName(newName);
-        final String tmpOldName = name;
+    public void renameFolder(final String newName) {
+        lock.writeLock().lock();
+        try {
+            checkExists();
+            checkFolderName(this.name);
+            checkFolderName(newName);
+            final String tmpOldName = name;
 
-        name = newName;
+            name = newName;
 
-        for (final MailboxEventListener mailboxEventListener : mailboxEventListeners) {
-            mailboxEventListener.folderRenamed(tmpOldName, this);
-        }
-
-        // TODO purge old folders, exists =false
+            for (final MailboxEventListener mailboxEventListener : mailboxEventListeners) {
+                mailboxEventListener.folderRenamed(tmpOldName, this);
+            }
 
-        // TODO notify children?
-        /*for (MailboxFolder mf: children) {
-        	renameFolder(mf.name); //do not really change name of children, just notify because parent changes
-        }*/
+            // TODO purge old folders, exists =false
 
-        logger.debug("Folder " + tmpOldName + " renamed to " + newName + newName + " - New Fullname is " + this.getFullName());
+            // TODO notify children?
+            /*for (MailboxFolder mf: children) {
+            	renameFolder(mf.name); //do not really change name of children, just notify because parent changes
+            }*/
 
+            logger.debug("Folder " + tmpOldName + " renamed to " + newName + newName + " - New Fullname is " + this.getFullName());
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
+    /**
+     * @param msgsToSearch
+     *            if not null only these messages are searched, they are resolved by UID so copies of the stored messages
+     *            work as well
+     */
     public Message[] search(final SearchTerm term, final Message[] msgsToSearch) {
-        final List<MockMessage> sms = new ArrayList<MockMessage>();
-        final List<Message> msgsToSearchL = new ArrayList<Message>();
+        if (term == null) {
+            return new Message[0];
+        }
+
+        UidSet restriction = null;
 
         if (msgsToSearch != null) {
-            msgsToSearchL.addAll(Arrays.asList(msgsToSearch));
+            final long[] uids = new long[msgsToSearch.length];
+            int count = 0;
+
+            for (final Message msg : msgsToSearch) {
+                if (msg instanceof MockMessage) {
+                    uids[count++] = ((MockMessage) msg).getMockid();
+                }
+            }
+
+            restriction = UidSet.of(Arrays.copyOf(uids, count));
         }
 
-        for (final Message msg : getMessages()) {
-            if (term != null && term.match(msg)) {
+        final int cacheSize = mailbox.getSearchCacheSize();
+        final boolean cacheable = cacheSize > 0 && SearchCache.isCacheable(term);
+        // read before searching, a change during the search leaves the result under an outdated version
+        final long searchVersion = version;
 
-                if (msgsToSearch == null || msgsToSearchL.contains(msg)) {
-                    sms.add((MockMessage) msg);
-                }
+        if (cacheable) {
+            final Message[] cached = searchCache.get(term, restriction, searchVersion);
+
+            if (cached != null) {
+                logger.debug("search(" + term + ") on " + getFullName() + " served from cache returns " + cached.length);
+                return cached;
             }
         }
+
+        final Message[] result = searchIndexed(term, restriction);
+
+        if (cacheable) {
+            searchCache.put(term, restriction, searchVersion, result, cacheSize);
+        }
+
+        return result;
+    }
+
+    private Message[] searchIndexed(final SearchTerm term, final UidSet restriction) {
+        final List<SearchTerm> leaves = SearchPlanner.leaves(term);
+
+        try {
+            prepareHeaderIndex(leaves);
+        } catch (final MessagingException e) {
+            logger.error("Header index not available, searching without " + e.toString(), e);
+        }
+
+        prepareBodyIndex(leaves);
+
+        try {
+            prepareSentDateIndex(leaves);
+        } catch (final MessagingException e) {
+            logger.error("Sent date index not available, searching without " + e.toString(), e);
+        }
+
+        final SearchPlanner.Candidates planned;
+
+        lock.readLock().lock();
+        try {
+            planned = new SearchPlanner(messages, flagIndex, receivedDateIndex, sentDateIndex, sizeIndex, headerIndex, bodyIndex).plan(term);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        UidSet uids = restriction;
+
+        if (planned != null) {
+            uids = uids == null ? planned.getUids() : uids.intersect(planned.getUids());
+        }
+
+        final Message[] candidates = uids == null ? getMessages() : getByIds(uids);
+
+        if (planned != null && planned.isExact()) {
+            logger.debug("search(" + term + ") answered by the indexes of " + getFullName() + " returns " + candidates.length);
+            return candidates;
+        }
+
+        final List<MockMessage> sms = match(term, candidates);
+
+        logger.debug("search(" + term + ") on " + candidates.length + " messages of " + getFullName() + " returns " + sms.size());
         return sms.toArray(new Message[sms.size()]);
     }
 
+    /**
+     * @return the time of the Date header or {@link UidIndex#NO_DATE}
+     */
+    private static long sentDateKey(final MockMessage msg) throws MessagingException {
+        final Date sentDate = msg.getSentDate();
+        return sentDate == null ? UidIndex.NO_DATE : sentDate.getTime();
+    }
+
     /**
      * @param simulateError
      *            the simulateError to set
@@ -711,6 +1778,22 @@ public class MailboxFolder implements MockMessage.FlagChangeListener {
         this.simulateError = simulateError;
     }
 
+    /**
+     * Sets or clears the flags on all messages with the given UIDs (UID STORE).
+     *
+     * @return the messages found for the UIDs
+     */
+    public Message[] setFlags(final UidSet uids, final Flags flags, final boolean set) throws MessagingException {
+        final Message[] msgs = getByIds(uids);
+
+        // no folder lock held here, the message locks are taken first
+        for (final Message msg : msgs) {
+            msg.setFlags(flags, set);
+        }
+
+        return msgs;
+    }
+
     protected void setSubscribed(final boolean subscribed) {
         this.subscribed = subscribed;
     }
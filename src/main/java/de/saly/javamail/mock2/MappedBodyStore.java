@@ -0,0 +1,149 @@
+/***********************************************************************************************************************
+ *
+ * JavaMail Mock2 Provider - open source mock classes for mock up JavaMail
+ * =======================================================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de)
+ * 
+ * Based on ideas from Kohsuke Kawaguchi's Mock-javamail (https://java.net/projects/mock-javamail)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.javamail.mock2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+
+import javax.mail.MessagingException;
+
+/**
+ * Keeps the messages outside of the heap in memory-mapped segment files, for mailboxes too large for the heap. Messages
+ * are appended to the current segment and a new segment is mapped once it is full, a message larger than a segment
+ * gets a segment of its own. The files are deleted right after they are mapped where the platform allows it and on
+ * exit otherwise, their space is given back once the mappings are garbage collected.
+ */
+public class MappedBodyStore implements BodyStore {
+
+    private static final class MappedBody implements Body {
+        private final ByteBuffer buffer;
+
+        private MappedBody(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int length() {
+            return buffer.capacity();
+        }
+
+        @Override
+        public InputStream newStream() {
+            return new SharedByteBufferInputStream(buffer);
+        }
+
+        @Override
+        public void release() {
+            // garbage collected
+        }
+
+        @Override
+        public void retain() {
+            // garbage collected
+        }
+    }
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(this.getClass());
+    private final File directory;
+    private int position;
+    private ByteBuffer segment;
+    private final int segmentSize;
+
+    /**
+     * Maps segments of {@link #DEFAULT_SEGMENT_SIZE} bytes in the temp directory.
+     */
+    public MappedBodyStore() {
+        this(new File(System.getProperty("java.io.tmpdir")), DEFAULT_SEGMENT_SIZE);
+    }
+
+    public MappedBodyStore(final File directory, final int segmentSize) {
+        super();
+
+        if (directory == null) {
+            throw new IllegalArgumentException("directory must not be null");
+        }
+
+        if (segmentSize < 1) {
+            throw new IllegalArgumentException("segment size must be positive: " + segmentSize);
+        }
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    private ByteBuffer map(final int size) throws MessagingException {
+        try {
+            final File file = File.createTempFile("javamail-mock2-", ".seg", directory);
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+            try {
+                // the mapping stays valid after the file is closed
+                return raf.getChannel().map(MapMode.READ_WRITE, 0, size);
+            } finally {
+                raf.close();
+
+                if (!file.delete()) {
+                    file.deleteOnExit();
+                }
+
+                logger.debug("Mapped segment " + file + " of " + size + " bytes");
+            }
+        } catch (final IOException e) {
+            throw new MessagingException("Unable to map segment in " + directory, e);
+        }
+    }
+
+    @Override
+    public synchronized Body put(final byte[] raw) throws MessagingException {
+        final ByteBuffer target;
+
+        if (raw.length > segmentSize) {
+            target = map(raw.length);
+        } else {
+            if (segment == null || position + raw.length > segmentSize) {
+                segment = map(segmentSize);
+                position = 0;
+            }
+
+            target = segment.duplicate();
+            target.position(position);
+            target.limit(position + raw.length);
+            position += raw.length;
+        }
+
+        final ByteBuffer body = target.slice();
+        body.put(raw);
+        body.clear();
+        return new MappedBody(body.asReadOnlyBuffer());
+    }
+
+}
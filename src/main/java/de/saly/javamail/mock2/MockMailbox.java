@@ -25,8 +25,12 @@
  **********************************************************************************************************************/
 package de.saly.javamail.mock2;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 import javax.mail.Address;
 import javax.mail.internet.AddressException;
@@ -34,6 +38,8 @@ import javax.mail.internet.InternetAddress;
 
 public class MockMailbox {
 
+    private static final DedupBodyStore DEFAULT_BODY_STORE = new DedupBodyStore(new HeapBodyStore());
+
     private static final Map<Address, MockMailbox> mailboxes = new HashMap<Address, MockMailbox>();
 
     public synchronized static MockMailbox get(final Address a) {
@@ -51,11 +57,18 @@ public class MockMailbox {
     public static void resetAll() {
 
         mailboxes.clear();
+        DEFAULT_BODY_STORE.clear();
 
     }
 
     private final Address address;
+    private volatile boolean bodyIndexEnabled;
+    private volatile BodyStore bodyStore = DEFAULT_BODY_STORE;
+    private volatile boolean headerIndexEnabled;
     private final MailboxFolder inbox;
+    private final Set<String> indexedHeaders = new CopyOnWriteArraySet<String>();
+    private volatile int parallelSearchThreshold = 10000;
+    private volatile int searchCacheSize = 64;
 
     private final MailboxFolder root = new MailboxFolder("", this, true);
 
@@ -63,12 +76,23 @@ public class MockMailbox {
         super();
         this.address = address;
         inbox = root.addSpecialSubFolder("INBOX");
+
+        for (final String header : HeaderIndex.DEFAULT_HEADERS) {
+            addIndexedHeader(header);
+        }
     }
 
     private MockMailbox(final String address) throws AddressException {
         this(new InternetAddress(address));
     }
 
+    /**
+     * Adds a header to the header index of all folders, by default Subject, From, To, Cc and Message-ID are indexed.
+     */
+    public void addIndexedHeader(final String name) {
+        indexedHeaders.add(name.toLowerCase(Locale.ENGLISH));
+    }
+
     /**
      * @return the address
      */
@@ -76,12 +100,96 @@ public class MockMailbox {
         return address;
     }
 
+    public BodyStore getBodyStore() {
+        return bodyStore;
+    }
+
     public MailboxFolder getInbox() {
         return inbox;
     }
 
+    /**
+     * @return the lower cased names of the headers indexed
+     */
+    public Set<String> getIndexedHeaders() {
+        return Collections.unmodifiableSet(indexedHeaders);
+    }
+
+    public int getParallelSearchThreshold() {
+        return parallelSearchThreshold;
+    }
+
     public MailboxFolder getRoot() {
         return root;
     }
 
+    public int getSearchCacheSize() {
+        return searchCacheSize;
+    }
+
+    public boolean isBodyIndexEnabled() {
+        return bodyIndexEnabled;
+    }
+
+    public boolean isHeaderIndexEnabled() {
+        return headerIndexEnabled;
+    }
+
+    /**
+     * Enables the full text index over the text parts of the messages which answers BodyTerm searches. The index of a
+     * folder is built on its first body search and then maintained on every add and expunge. Disabled by default, so
+     * messages are only tokenized if asked for.
+     */
+    public void setBodyIndexEnabled(final boolean bodyIndexEnabled) {
+        this.bodyIndexEnabled = bodyIndexEnabled;
+    }
+
+    /**
+     * Sets where the raw bytes of messages added from now on are kept. By default a {@link DedupBodyStore} over a
+     * {@link HeapBodyStore} shared by all mailboxes is used. Use a {@link MappedBodyStore} to keep them off the heap or
+     * a {@link CompressedBodyStore} to keep them deflated, wrapped in a {@link DedupBodyStore} to store identical
+     * messages once.
+     */
+    public void setBodyStore(final BodyStore bodyStore) {
+        if (bodyStore == null) {
+            throw new IllegalArgumentException("body store must not be null");
+        }
+
+        this.bodyStore = bodyStore;
+    }
+
+    /**
+     * Enables the inverted header index which answers SubjectTerm, FromStringTerm, RecipientStringTerm (TO and CC),
+     * MessageIDTerm and HeaderTerm (for indexed headers) searches. The index of a folder is built on its first search
+     * and then maintained on every add. Disabled by default.
+     */
+    public void setHeaderIndexEnabled(final boolean headerIndexEnabled) {
+        this.headerIndexEnabled = headerIndexEnabled;
+    }
+
+    /**
+     * Search terms no index can answer are matched in parallel chunks if at least this many messages have to be
+     * checked, fetches of at least this many messages are prefetched in parallel as well. Defaults to 10000,
+     * {@link Integer#MAX_VALUE} always searches and fetches in the calling thread.
+     */
+    public void setParallelSearchThreshold(final int parallelSearchThreshold) {
+        if (parallelSearchThreshold < 1) {
+            throw new IllegalArgumentException("threshold must be positive: " + parallelSearchThreshold);
+        }
+
+        this.parallelSearchThreshold = parallelSearchThreshold;
+    }
+
+    /**
+     * Number of search results each folder keeps for repeated searches until the next change of the folder. Defaults
+     * to 64, 0 disables the cache.
+     */
+    public void setSearchCacheSize(final int searchCacheSize) {
+        if (searchCacheSize < 0) {
+            throw new IllegalArgumentException("cache size must not be negative: " + searchCacheSize);
+        }
+
+        this.searchCacheSize = searchCacheSize;
+    }
+
 }
@@ -25,17 +25,27 @@
  **********************************************************************************************************************/
 package de.saly.javamail.mock2;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.Enumeration;
+import java.util.List;
 
 import javax.activation.DataHandler;
 import javax.mail.Address;
+import javax.mail.FetchProfile;
 import javax.mail.Flags;
 import javax.mail.Folder;
+import javax.mail.Header;
 import javax.mail.IllegalWriteException;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
+import javax.mail.UIDFolder;
 import javax.mail.internet.MimeMessage;
+import javax.mail.internet.SharedInputStream;
 
 public class MockMessage extends MimeMessage implements Comparable<MockMessage> {
 
@@ -43,26 +53,89 @@ public class MockMessage extends MimeMessage implements Comparable<MockMessage>
         void onFlagChange(MockMessage msg, Flags flags, boolean set);
     }
 
+    // the message as stored, shared with views and copies
+    private final BodyStore.Body body;
+    // found when the message is stored, so the size is known without parsing the headers
+    private final long contentOffset;
+    private final int contentSize;
+    // the decoded ENVELOPE fields once fetched, views share the ones of the stored message
+    private volatile Envelope envelope;
     private final FlagChangeListener flagChangeListener;
     private Folder folder;
     protected final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(this.getClass());
     private final MailboxFolder mbf;
 
-    private final long mockid;
+    private long mockid;
+    private volatile boolean parsed;
+    private boolean released;
+    private Date receivedDate;
+    // computed on the first sort, views use the ones of the stored message
+    private volatile SortKeys sortKeys;
+    // headers added by the folder on top of the raw bytes, null for views
+    private final List<Header> specialHeaders;
+    // the stored message this is a view of or this
+    private final MockMessage stored;
 
+    /**
+     * Creates a view of a stored message for the given folder. The view shares the parsed headers and the content of
+     * the stored message, which are never modified once it is stored, so nothing is copied. Only the flags are copied
+     * because they can be changed through the view.
+     */
     protected MockMessage(final Message source, final Folder folder) throws MessagingException {
-        this((MimeMessage) source, ((MockMessage) source).mockid, ((MockMessage) source).mbf, ((MockMessage) source).flagChangeListener);
+        super(folder, source.getMessageNumber());
+        final MockMessage other = (MockMessage) source;
+        this.mockid = other.mockid;
+        this.mbf = other.mbf;
+        this.flagChangeListener = other.flagChangeListener;
         this.folder = folder;
-        this.setMessageNumber(source.getMessageNumber());
+        this.body = other.body;
+        this.contentOffset = other.contentOffset;
+        this.contentSize = other.contentSize;
+        this.receivedDate = other.receivedDate;
+        this.specialHeaders = null;
+        this.stored = other.stored;
+        this.flags = other.getFlags();
     }
 
+    /**
+     * Creates a message to be stored. The source is written out once and kept as raw bytes in the body store of the
+     * mailbox, headers and content are only parsed from them when first accessed. The raw bytes of another mock
+     * message are shared instead.
+     */
     protected MockMessage(final MimeMessage source, final long mockid, final MailboxFolder mbf, final FlagChangeListener flagChangeListener)
             throws MessagingException {
-        super(source);
+        super(source.getSession());
         this.mockid = mockid;
         this.flagChangeListener = flagChangeListener;
         this.mbf = mbf;
-
+        this.stored = this;
+        this.headers = null;
+        this.flags = source.getFlags();
+        this.modified = false;
+        this.saved = true;
+
+        if (source instanceof MockMessage) {
+            final MockMessage other = ((MockMessage) source).stored;
+            this.body = other.body;
+            this.body.retain();
+            this.contentOffset = other.contentOffset;
+            this.contentSize = other.contentSize;
+            this.specialHeaders = new ArrayList<Header>(other.specialHeaders);
+        } else {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            try {
+                source.writeTo(out);
+            } catch (final IOException e) {
+                throw new MessagingException("Unable to copy message", e);
+            }
+
+            final byte[] raw = out.toByteArray();
+            this.body = mbf.getMailbox().getBodyStore().put(raw);
+            this.contentOffset = headerLength(raw);
+            this.contentSize = raw.length - (int) contentOffset;
+            this.specialHeaders = new ArrayList<Header>(2);
+        }
     }
 
     /* (non-Javadoc)
@@ -120,6 +193,70 @@ public class MockMessage extends MimeMessage implements Comparable<MockMessage>
         return new Long(this.getMockid()).compareTo(new Long(o.getMockid()));
     }
 
+    private void ensureParsed() throws MessagingException {
+        if (parsed) {
+            return;
+        }
+
+        synchronized (this) {
+            if (parsed) {
+                return;
+            }
+
+            if (stored != this) {
+                stored.ensureParsed();
+                headers = stored.headers;
+            } else {
+                // only the headers are kept, the content is read from the body store every time
+                headers = createInternetHeaders(body.newStream());
+
+                for (final Header header : specialHeaders) {
+                    headers.addHeader(header.getName(), header.getValue());
+                }
+            }
+
+            parsed = true;
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see javax.mail.internet.MimeMessage#getAllHeaderLines()
+     */
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Enumeration getAllHeaderLines() throws MessagingException {
+        ensureParsed();
+        return super.getAllHeaderLines();
+    }
+
+    /* (non-Javadoc)
+     * @see javax.mail.internet.MimeMessage#getAllHeaders()
+     */
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Enumeration getAllHeaders() throws MessagingException {
+        ensureParsed();
+        return super.getAllHeaders();
+    }
+
+    /* (non-Javadoc)
+     * @see javax.mail.internet.MimeMessage#getContentStream()
+     */
+    @Override
+    protected InputStream getContentStream() throws MessagingException {
+        ensureParsed();
+        return ((SharedInputStream) body.newStream()).newStream(contentOffset, -1);
+    }
+
+    // computed once per stored message
+    private synchronized Envelope getEnvelope() throws MessagingException {
+        if (envelope == null) {
+            envelope = new Envelope(this);
+        }
+
+        return envelope;
+    }
+
     @Override
     public synchronized Folder getFolder() {
         if (folder == null) {
@@ -129,6 +266,79 @@ public class MockMessage extends MimeMessage implements Comparable<MockMessage>
         }
     }
 
+    /* (non-Javadoc)
+     * @see javax.mail.internet.MimeMessage#getFrom()
+     */
+    @Override
+    public Address[] getFrom() throws MessagingException {
+        final Envelope e = envelope;
+        return e == null ? super.getFrom() : e.getFrom();
+    }
+
+    /* (non-Javadoc)
+     * @see javax.mail.internet.MimeMessage#getHeader(java.lang.String)
+     */
+    @Override
+    public String[] getHeader(final String name) throws MessagingException {
+        ensureParsed();
+        return super.getHeader(name);
+    }
+
+    /* (non-Javadoc)
+     * @see javax.mail.internet.MimeMessage#getHeader(java.lang.String, java.lang.String)
+     */
+    @Override
+    public String getHeader(final String name, final String delimiter) throws MessagingException {
+        ensureParsed();
+        return super.getHeader(name, delimiter);
+    }
+
+    /* (non-Javadoc)
+     * @see javax.mail.internet.MimeMessage#getMatchingHeaderLines(java.lang.String[])
+     */
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Enumeration getMatchingHeaderLines(final String[] names) throws MessagingException {
+        ensureParsed();
+        return super.getMatchingHeaderLines(names);
+    }
+
+    /* (non-Javadoc)
+     * @see javax.mail.internet.MimeMessage#getMatchingHeaders(java.lang.String[])
+     */
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Enumeration getMatchingHeaders(final String[] names) throws MessagingException {
+        ensureParsed();
+        return super.getMatchingHeaders(names);
+    }
+
+    /* (non-Javadoc)
+     * @see javax.mail.internet.MimeMessage#getMessageID()
+     */
+    @Override
+    public String getMessageID() throws MessagingException {
+        final Envelope e = envelope;
+        return e == null ? super.getMessageID() : e.getMessageID();
+    }
+
+    /* (non-Javadoc)
+     * @see javax.mail.Message#getMessageNumber()
+     */
+    @Override
+    public int getMessageNumber() {
+        if (folder == null && mbf != null) {
+            // stored message, its number is looked up because it changes with every expunge
+            final int msgnum = mbf.getMessageNumber(this);
+
+            if (msgnum > 0) {
+                return msgnum;
+            }
+        }
+
+        return super.getMessageNumber();
+    }
+
     // IllegalWriteException("Mock messages are read-only");
 
     /**
@@ -138,6 +348,179 @@ public class MockMessage extends MimeMessage implements Comparable<MockMessage>
         return mockid;
     }
 
+    /**
+     * @return the current CONDSTORE mod-sequence of the message or -1 if it is no longer stored
+     */
+    public long getModSeq() {
+        return mbf == null ? -1 : mbf.getModSeq(this);
+    }
+
+    /* (non-Javadoc)
+     * @see javax.mail.internet.MimeMessage#getNonMatchingHeaderLines(java.lang.String[])
+     */
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Enumeration getNonMatchingHeaderLines(final String[] names) throws MessagingException {
+        ensureParsed();
+        return super.getNonMatchingHeaderLines(names);
+    }
+
+    /* (non-Javadoc)
+     * @see javax.mail.internet.MimeMessage#getNonMatchingHeaders(java.lang.String[])
+     */
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Enumeration getNonMatchingHeaders(final String[] names) throws MessagingException {
+        ensureParsed();
+        return super.getNonMatchingHeaders(names);
+    }
+
+    /**
+     * @return the time the message was stored in its folder (the IMAP INTERNALDATE)
+     */
+    @Override
+    public Date getReceivedDate() throws MessagingException {
+        return receivedDate == null ? null : new Date(receivedDate.getTime());
+    }
+
+    /* (non-Javadoc)
+     * @see javax.mail.internet.MimeMessage#getRecipients(javax.mail.Message.RecipientType)
+     */
+    @Override
+    public Address[] getRecipients(final javax.mail.Message.RecipientType type) throws MessagingException {
+        final Envelope e = envelope;
+
+        if (e == null || type == RecipientType.NEWSGROUPS) {
+            return super.getRecipients(type);
+        }
+
+        return e.getRecipients(type);
+    }
+
+    /* (non-Javadoc)
+     * @see javax.mail.internet.MimeMessage#getReplyTo()
+     */
+    @Override
+    public Address[] getReplyTo() throws MessagingException {
+        final Envelope e = envelope;
+        return e == null ? super.getReplyTo() : e.getReplyTo();
+    }
+
+    /* (non-Javadoc)
+     * @see javax.mail.internet.MimeMessage#getSender()
+     */
+    @Override
+    public Address getSender() throws MessagingException {
+        final Envelope e = envelope;
+        return e == null ? super.getSender() : e.getSender();
+    }
+
+    /* (non-Javadoc)
+     * @see javax.mail.internet.MimeMessage#getSentDate()
+     */
+    @Override
+    public Date getSentDate() throws MessagingException {
+        final Envelope e = envelope;
+        return e == null ? super.getSentDate() : e.getSentDate();
+    }
+
+    /* (non-Javadoc)
+     * @see javax.mail.internet.MimeMessage#getSize()
+     */
+    @Override
+    public int getSize() throws MessagingException {
+        return contentSize;
+    }
+
+    SortKeys getSortKeys() throws MessagingException {
+        if (stored != this) {
+            return stored.getSortKeys();
+        }
+
+        // computing them twice in a race does no harm
+        SortKeys keys = sortKeys;
+
+        if (keys == null) {
+            keys = new SortKeys(this, receivedDate, contentSize);
+            sortKeys = keys;
+        }
+
+        return keys;
+    }
+
+    /* (non-Javadoc)
+     * @see javax.mail.internet.MimeMessage#getSubject()
+     */
+    @Override
+    public String getSubject() throws MessagingException {
+        final Envelope e = envelope;
+        return e == null ? super.getSubject() : e.getSubject();
+    }
+
+    /**
+     * @return the length of the header block including the empty line ending it, lines end the way
+     *         {@link javax.mail.internet.InternetHeaders} reads them, with CRLF, LF or CR
+     */
+    private static int headerLength(final byte[] raw) {
+        int lineStart = 0;
+
+        for (int i = 0; i < raw.length; i++) {
+            if (raw[i] == '\r' || raw[i] == '\n') {
+                final boolean empty = i == lineStart;
+
+                if (raw[i] == '\r' && i + 1 < raw.length && raw[i + 1] == '\n') {
+                    i++;
+                }
+
+                lineStart = i + 1;
+
+                if (empty) {
+                    return lineStart;
+                }
+            }
+        }
+
+        return raw.length;
+    }
+
+    /**
+     * Loads the items of the profile up front like an IMAP FETCH, so reading them afterwards does not parse anything.
+     * FLAGS refreshes the flags of a view from the stored message.
+     */
+    void prefetch(final FetchProfile fp) throws MessagingException {
+        boolean headers = fp.getHeaderNames().length > 0;
+
+        for (final FetchProfile.Item item : fp.getItems()) {
+            if (item != FetchProfile.Item.FLAGS && item != UIDFolder.FetchProfileItem.UID) {
+                headers = true;
+            }
+        }
+
+        if (headers) {
+            ensureParsed();
+        }
+
+        if (fp.contains(FetchProfile.Item.ENVELOPE)) {
+            envelope = stored.getEnvelope();
+        }
+
+        if (fp.contains(FetchProfile.Item.FLAGS) && stored != this) {
+            final Flags current = stored.getFlags();
+
+            synchronized (this) {
+                flags = current;
+            }
+        }
+    }
+
+    // called once the stored message has been removed from its folder
+    synchronized void releaseBody() {
+        if (stored == this && !released) {
+            released = true;
+            body.release();
+        }
+    }
+
     /* (non-Javadoc)
      * @see javax.mail.internet.MimeMessage#removeHeader(java.lang.String)
      */
@@ -289,6 +672,15 @@ public class MockMessage extends MimeMessage implements Comparable<MockMessage>
         super.setMessageNumber(msgnum);
     }
 
+    // the UID is assigned when the message is stored, after it has been copied
+    void setMockid(final long mockid) {
+        this.mockid = mockid;
+    }
+
+    void setReceivedDate(final Date receivedDate) {
+        this.receivedDate = receivedDate;
+    }
+
     /* (non-Javadoc)
      * @see javax.mail.Message#setRecipient(javax.mail.Message.RecipientType, javax.mail.Address)
      */
@@ -337,8 +729,18 @@ public class MockMessage extends MimeMessage implements Comparable<MockMessage>
         throw new IllegalWriteException("Mock messages are read-only");
     }
 
+    // only called before the message is stored
     void setSpecialHeader(final String name, final String value) throws MessagingException {
-        super.addHeader(name, value);
+        specialHeaders.add(new Header(name, value));
+
+        if (parsed) {
+            headers.addHeader(name, value);
+        }
+    }
+
+    // sets the flags without notifying the listener, used before the message is stored
+    void setSpecialFlags(final Flags flags) throws MessagingException {
+        super.setFlags(flags, true);
     }
 
     /* (non-Javadoc)
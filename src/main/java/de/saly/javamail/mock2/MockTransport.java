@@ -73,7 +73,7 @@ public class MockTransport extends Transport {
 
             }
 
-            mailbox.getInbox().add(new MimeMessage((MimeMessage) msg));
+            mailbox.getInbox().add((MimeMessage) msg);
             notifyTransportListeners(TransportEvent.MESSAGE_DELIVERED, addresses, new Address[0], new Address[0], msg);
         }
     }
@@ -99,7 +99,7 @@ public class POP3MockFolder extends POP3MockFolder0 implements MailboxEventListe
 
     @Override
     public void fetch(final Message[] msgs, final FetchProfile fp) throws MessagingException {
-        // just do nothing
+        mailboxFolder.prefetch(msgs, fp);
     }
 
     @Override
@@ -186,14 +186,7 @@ public class POP3MockFolder extends POP3MockFolder0 implements MailboxEventListe
     @Override
     public synchronized int[] getSizes() throws MessagingException {
         checkOpened();
-        final int count = getMessageCount();
-        final int[] sizes = new int[count];
-
-        for (int i = 1; i <= count; i++) {
-            sizes[i - 1] = getMessage(i).getSize();
-        }
-
-        return sizes;
+        return mailboxFolder.getSizes();
 
     }
 
@@ -214,7 +207,7 @@ public class POP3MockFolder extends POP3MockFolder0 implements MailboxEventListe
     }
 
     @Override
-    public void messageAdded(final MailboxFolder mf, final MockMessage msg) {
+    public void messagesAdded(final MailboxFolder mf, final MockMessage[] msgs) {
         // ignore
         // TODO JavaMail impl seems to not fire a event here for pop3, so we
         // ignore it
@@ -228,7 +221,7 @@ public class POP3MockFolder extends POP3MockFolder0 implements MailboxEventListe
     }
 
     @Override
-    public void messageExpunged(final MailboxFolder mf, final MockMessage msg, final boolean removed) {
+    public void messagesExpunged(final MailboxFolder mf, final MockMessage[] msgs, final boolean removed) {
         // not valid for pop3
 
     }
@@ -0,0 +1,122 @@
+/***********************************************************************************************************************
+ *
+ * JavaMail Mock2 Provider - open source mock classes for mock up JavaMail
+ * =======================================================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de)
+ * 
+ * Based on ideas from Kohsuke Kawaguchi's Mock-javamail (https://java.net/projects/mock-javamail)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.javamail.mock2;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+
+import javax.mail.search.ComparisonTerm;
+
+/**
+ * Sorted index from a numeric key (a date in milliseconds or a size) to the UIDs of the messages with that key. The
+ * comparison terms become range lookups instead of parsing every message. Maintained on add and expunge.
+ */
+final class RangeIndex {
+
+    private final TreeMap<Long, UidList> keys = new TreeMap<Long, UidList>();
+
+    void add(final long key, final long uid) {
+        UidList uids = keys.get(key);
+
+        if (uids == null) {
+            uids = new UidList();
+            keys.put(key, uids);
+        }
+
+        uids.add(uid);
+    }
+
+    void clear() {
+        keys.clear();
+    }
+
+    /**
+     * @param comparison
+     *            one of the constants of {@link ComparisonTerm}
+     * @return the UIDs of the messages whose key compares to the number as given
+     */
+    UidSet lookup(final int comparison, final long number) {
+        final List<Collection<UidList>> ranges = new ArrayList<Collection<UidList>>(2);
+
+        switch (comparison) {
+        case ComparisonTerm.LE:
+            ranges.add(keys.headMap(number, true).values());
+            break;
+        case ComparisonTerm.LT:
+            ranges.add(keys.headMap(number, false).values());
+            break;
+        case ComparisonTerm.EQ:
+            ranges.add(keys.subMap(number, true, number, true).values());
+            break;
+        case ComparisonTerm.NE:
+            ranges.add(keys.headMap(number, false).values());
+            ranges.add(keys.tailMap(number, false).values());
+            break;
+        case ComparisonTerm.GT:
+            ranges.add(keys.tailMap(number, false).values());
+            break;
+        case ComparisonTerm.GE:
+            ranges.add(keys.tailMap(number, true).values());
+            break;
+        default:
+            return UidSet.EMPTY;
+        }
+
+        int count = 0;
+
+        for (final Collection<UidList> range : ranges) {
+            for (final UidList uids : range) {
+                count += uids.size();
+            }
+        }
+
+        final long[] ret = new long[count];
+        int pos = 0;
+
+        for (final Collection<UidList> range : ranges) {
+            for (final UidList uids : range) {
+                pos = uids.copyTo(ret, pos);
+            }
+        }
+
+        return UidSet.of(ret);
+    }
+
+    void remove(final long key, final long uid) {
+        final UidList uids = keys.get(key);
+
+        if (uids != null) {
+            uids.remove(uid);
+
+            if (uids.size() == 0) {
+                keys.remove(key);
+            }
+        }
+    }
+
+}
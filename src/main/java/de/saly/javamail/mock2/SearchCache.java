@@ -0,0 +1,145 @@
+/***********************************************************************************************************************
+ *
+ * JavaMail Mock2 Provider - open source mock classes for mock up JavaMail
+ * =======================================================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de)
+ * 
+ * Based on ideas from Kohsuke Kawaguchi's Mock-javamail (https://java.net/projects/mock-javamail)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.javamail.mock2;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.mail.Message;
+import javax.mail.search.AndTerm;
+import javax.mail.search.NotTerm;
+import javax.mail.search.OrTerm;
+import javax.mail.search.SearchTerm;
+
+/**
+ * LRU cache of search results of a {@link MailboxFolder}. Entries are only valid for the version of the folder they
+ * were computed at, so any add, expunge or flag change invalidates all of them. Only terms built from the classes in
+ * javax.mail.search are cached, they compare by value and match on the message alone. As with any map key, the Flags
+ * or Date given to such a term must not be changed once it has been searched for.
+ */
+final class SearchCache {
+
+    private static final class Key {
+        private final UidSet restriction;
+        private final SearchTerm term;
+
+        private Key(final SearchTerm term, final UidSet restriction) {
+            this.term = term;
+            this.restriction = restriction;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+
+            final Key other = (Key) obj;
+            return term.equals(other.term) && (restriction == null ? other.restriction == null : restriction.equals(other.restriction));
+        }
+
+        @Override
+        public int hashCode() {
+            return term.hashCode() * 31 + (restriction == null ? 0 : restriction.hashCode());
+        }
+    }
+
+    /**
+     * @return true if the term and all of its children are from javax.mail.search and not subclassed
+     */
+    static boolean isCacheable(final SearchTerm term) {
+        if (term == null || !term.getClass().getName().startsWith("javax.mail.search.")) {
+            return false;
+        }
+
+        if (term instanceof AndTerm) {
+            for (final SearchTerm child : ((AndTerm) term).getTerms()) {
+                if (!isCacheable(child)) {
+                    return false;
+                }
+            }
+        }
+
+        if (term instanceof OrTerm) {
+            for (final SearchTerm child : ((OrTerm) term).getTerms()) {
+                if (!isCacheable(child)) {
+                    return false;
+                }
+            }
+        }
+
+        return !(term instanceof NotTerm) || isCacheable(((NotTerm) term).getTerm());
+    }
+
+    private int capacity;
+
+    private final Map<Key, Message[]> entries = new LinkedHashMap<Key, Message[]>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Key, Message[]> eldest) {
+            return size() > capacity;
+        }
+    };
+
+    // folder version all entries belong to
+    private long version = -1;
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return a copy of the cached result or null
+     */
+    synchronized Message[] get(final SearchTerm term, final UidSet restriction, final long version) {
+        if (version != this.version) {
+            return null;
+        }
+
+        final Message[] result = entries.get(new Key(term, restriction));
+        return result == null ? null : result.clone();
+    }
+
+    /**
+     * Stores a result computed at the given version, results of an outdated version are dropped.
+     */
+    synchronized void put(final SearchTerm term, final UidSet restriction, final long version, final Message[] result,
+            final int capacity) {
+        if (version < this.version) {
+            return;
+        }
+
+        if (version > this.version) {
+            entries.clear();
+            this.version = version;
+        }
+
+        this.capacity = capacity;
+        entries.put(new Key(term, restriction), result.clone());
+    }
+
+}
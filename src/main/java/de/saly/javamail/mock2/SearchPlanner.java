@@ -0,0 +1,259 @@
+/***********************************************************************************************************************
+ *
+ * JavaMail Mock2 Provider - open source mock classes for mock up JavaMail
+ * =======================================================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de)
+ * 
+ * Based on ideas from Kohsuke Kawaguchi's Mock-javamail (https://java.net/projects/mock-javamail)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.javamail.mock2;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import javax.mail.search.AndTerm;
+import javax.mail.search.BodyTerm;
+import javax.mail.search.DateTerm;
+import javax.mail.search.FlagTerm;
+import javax.mail.search.NotTerm;
+import javax.mail.search.OrTerm;
+import javax.mail.search.ReceivedDateTerm;
+import javax.mail.search.SearchTerm;
+import javax.mail.search.SentDateTerm;
+import javax.mail.search.SizeTerm;
+
+/**
+ * Turns a {@link SearchTerm} tree into a set of candidate UIDs using the indexes of a {@link MailboxFolder}. The leaves
+ * an index can answer are looked up, AndTerm intersects and OrTerm unites the results of its children. Leaves no
+ * index can answer are unknown and make their OrTerm or NotTerm unknown too, an AndTerm simply ignores them. The caller
+ * runs the term itself on the candidates unless the plan is exact. Message numbers depend on the session, so UIDs
+ * enter the plan only as the set of messages to search.
+ * <p>
+ * Must be used while holding the read lock of the folder.
+ */
+final class SearchPlanner {
+
+    /**
+     * UIDs which may match. Exact if every live message in the set matches, so the term need not be verified.
+     */
+    static final class Candidates {
+        private final boolean exact;
+        private final UidSet uids;
+
+        Candidates(final UidSet uids, final boolean exact) {
+            this.uids = uids;
+            this.exact = exact;
+        }
+
+        UidSet getUids() {
+            return uids;
+        }
+
+        boolean isExact() {
+            return exact;
+        }
+    }
+
+    /**
+     * Folds the case of every char the same way {@link String#regionMatches(boolean, int, String, int, int)} compares
+     * them, which {@link javax.mail.search.StringTerm} uses. Two chars fold to the same char exactly if they match
+     * there, and unlike {@link String#toLowerCase()} the length never changes, so a folded substring of a folded value
+     * is the same as a match of the term.
+     */
+    static String fold(final String value) {
+        final char[] chars = value.toCharArray();
+
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+        }
+
+        return new String(chars);
+    }
+
+    /**
+     * @return the leaves of the term tree
+     */
+    static List<SearchTerm> leaves(final SearchTerm term) {
+        final List<SearchTerm> leaves = new ArrayList<SearchTerm>();
+        leaves(term, leaves);
+        return leaves;
+    }
+
+    private static void leaves(final SearchTerm term, final List<SearchTerm> leaves) {
+        if (term instanceof AndTerm) {
+            for (final SearchTerm child : ((AndTerm) term).getTerms()) {
+                leaves(child, leaves);
+            }
+        } else if (term instanceof OrTerm) {
+            for (final SearchTerm child : ((OrTerm) term).getTerms()) {
+                leaves(child, leaves);
+            }
+        } else if (term instanceof NotTerm) {
+            leaves(((NotTerm) term).getTerm(), leaves);
+        } else {
+            leaves.add(term);
+        }
+    }
+
+    private final BodyIndex bodyIndex;
+    private final FlagIndex flagIndex;
+    private final HeaderIndex headerIndex;
+    private final UidIndex messages;
+    private final RangeIndex receivedDateIndex;
+    private final RangeIndex sentDateIndex;
+    private final RangeIndex sizeIndex;
+
+    /**
+     * @param sentDateIndex
+     *            may be null
+     * @param headerIndex
+     *            may be null
+     * @param bodyIndex
+     *            may be null
+     */
+    SearchPlanner(final UidIndex messages, final FlagIndex flagIndex, final RangeIndex receivedDateIndex, final RangeIndex sentDateIndex,
+            final RangeIndex sizeIndex, final HeaderIndex headerIndex, final BodyIndex bodyIndex) {
+        this.messages = messages;
+        this.flagIndex = flagIndex;
+        this.receivedDateIndex = receivedDateIndex;
+        this.sentDateIndex = sentDateIndex;
+        this.sizeIndex = sizeIndex;
+        this.headerIndex = headerIndex;
+        this.bodyIndex = bodyIndex;
+    }
+
+    /**
+     * @return the candidates or null if all messages have to be searched
+     */
+    Candidates plan(final SearchTerm term) {
+        // a subclass may override match(), only the terms of javax.mail.search itself can be answered by the indexes
+        if (!term.getClass().getName().startsWith("javax.mail.search.")) {
+            return null;
+        }
+
+        if (term instanceof AndTerm) {
+            return planAnd(((AndTerm) term).getTerms());
+        }
+
+        if (term instanceof OrTerm) {
+            return planOr(((OrTerm) term).getTerms());
+        }
+
+        if (term instanceof NotTerm) {
+            final Candidates candidates = plan(((NotTerm) term).getTerm());
+
+            // the complement of a superset says nothing
+            if (candidates == null || !candidates.isExact()) {
+                return null;
+            }
+
+            return new Candidates(candidates.getUids().complement(messages.lastUid()), true);
+        }
+
+        if (term instanceof FlagTerm) {
+            final FlagTerm flagTerm = (FlagTerm) term;
+            final BitSet slots = flagTerm.getTestSet() ? flagIndex.matching(flagTerm.getFlags()) : flagIndex.matchingNone(flagTerm
+                    .getFlags());
+            return new Candidates(toUidSet(slots), true);
+        }
+
+        if (term instanceof SizeTerm) {
+            final SizeTerm sizeTerm = (SizeTerm) term;
+            return new Candidates(sizeIndex.lookup(sizeTerm.getComparison(), sizeTerm.getNumber()), true);
+        }
+
+        // messages without a date never match, they are not in the indexes
+        if (term instanceof ReceivedDateTerm) {
+            final DateTerm dateTerm = (DateTerm) term;
+            return new Candidates(receivedDateIndex.lookup(dateTerm.getComparison(), dateTerm.getDate().getTime()), true);
+        }
+
+        if (term instanceof SentDateTerm) {
+            if (sentDateIndex == null) {
+                return null;
+            }
+
+            final DateTerm dateTerm = (DateTerm) term;
+            return new Candidates(sentDateIndex.lookup(dateTerm.getComparison(), dateTerm.getDate().getTime()), true);
+        }
+
+        if (term instanceof BodyTerm) {
+            final UidSet uids = bodyIndex == null ? null : bodyIndex.lookup((BodyTerm) term);
+            return uids == null ? null : new Candidates(uids, false);
+        }
+
+        final UidSet uids = headerIndex == null ? null : headerIndex.lookup(term);
+        return uids == null ? null : new Candidates(uids, false);
+    }
+
+    private Candidates planAnd(final SearchTerm[] terms) {
+        UidSet uids = null;
+        boolean exact = true;
+
+        for (final SearchTerm child : terms) {
+            final Candidates candidates = plan(child);
+
+            if (candidates == null) {
+                exact = false;
+                continue;
+            }
+
+            uids = uids == null ? candidates.getUids() : uids.intersect(candidates.getUids());
+            exact &= candidates.isExact();
+
+            if (uids.isEmpty()) {
+                // nothing can match, no matter what the other children say
+                return new Candidates(uids, true);
+            }
+        }
+
+        return uids == null ? null : new Candidates(uids, exact);
+    }
+
+    private Candidates planOr(final SearchTerm[] terms) {
+        UidSet uids = UidSet.EMPTY;
+        boolean exact = true;
+
+        for (final SearchTerm child : terms) {
+            final Candidates candidates = plan(child);
+
+            if (candidates == null) {
+                return null;
+            }
+
+            uids = uids.union(candidates.getUids());
+            exact &= candidates.isExact();
+        }
+
+        return new Candidates(uids, exact);
+    }
+
+    private UidSet toUidSet(final BitSet slots) {
+        final UidList uids = new UidList();
+
+        for (int slot = slots.nextSetBit(0); slot >= 0; slot = slots.nextSetBit(slot + 1)) {
+            uids.add(messages.uidAtSlot(slot));
+        }
+
+        return uids.toUidSet();
+    }
+
+}
@@ -0,0 +1,121 @@
+/***********************************************************************************************************************
+ *
+ * JavaMail Mock2 Provider - open source mock classes for mock up JavaMail
+ * =======================================================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de)
+ * 
+ * Based on ideas from Kohsuke Kawaguchi's Mock-javamail (https://java.net/projects/mock-javamail)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.javamail.mock2;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import javax.mail.internet.SharedInputStream;
+
+/**
+ * Same as {@link javax.mail.util.SharedByteArrayInputStream} but over a {@link ByteBuffer}, which may be direct or
+ * mapped. The buffer is never modified, every stream reads through a duplicate of it.
+ */
+final class SharedByteBufferInputStream extends InputStream implements SharedInputStream {
+
+    private final ByteBuffer base;
+    private final ByteBuffer buffer;
+    private int mark;
+    private final int start;
+
+    SharedByteBufferInputStream(final ByteBuffer base) {
+        this(base, 0, base.limit());
+    }
+
+    private SharedByteBufferInputStream(final ByteBuffer base, final int start, final int end) {
+        super();
+        this.base = base;
+        this.start = start;
+        this.buffer = base.duplicate();
+        this.buffer.limit(end);
+        this.buffer.position(start);
+        this.mark = start;
+    }
+
+    @Override
+    public synchronized int available() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public synchronized long getPosition() {
+        return buffer.position() - start;
+    }
+
+    @Override
+    public synchronized void mark(final int readlimit) {
+        mark = buffer.position();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public InputStream newStream(final long start, final long end) {
+        final int length = buffer.limit() - this.start;
+
+        if (start < 0 || start > length || end > length || end != -1 && end < start) {
+            throw new IllegalArgumentException("invalid range " + start + " to " + end + " of " + length + " bytes");
+        }
+
+        return new SharedByteBufferInputStream(base, this.start + (int) start, this.start + (int) (end == -1 ? length : end));
+    }
+
+    @Override
+    public synchronized int read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public synchronized int read(final byte[] b, final int off, final int len) {
+        if (len == 0) {
+            return 0;
+        }
+
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+
+        final int count = Math.min(len, buffer.remaining());
+        buffer.get(b, off, count);
+        return count;
+    }
+
+    @Override
+    public synchronized void reset() {
+        buffer.position(mark);
+    }
+
+    @Override
+    public synchronized long skip(final long n) {
+        final int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+        buffer.position(buffer.position() + count);
+        return count;
+    }
+
+}
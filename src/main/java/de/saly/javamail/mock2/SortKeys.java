@@ -0,0 +1,275 @@
+/***********************************************************************************************************************
+ *
+ * JavaMail Mock2 Provider - open source mock classes for mock up JavaMail
+ * =======================================================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de)
+ * 
+ * Based on ideas from Kohsuke Kawaguchi's Mock-javamail (https://java.net/projects/mock-javamail)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.javamail.mock2;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.mail.Address;
+import javax.mail.Message.RecipientType;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+
+import com.sun.mail.imap.SortTerm;
+
+/**
+ * The IMAP SORT (RFC 5256) keys of a message, normalized once on the first sort and kept by the message so sorting
+ * again compares plain values instead of parsing headers.
+ */
+final class SortKeys {
+
+    /**
+     * Orders the positions of the messages to sort by their keys, so the order is a plain int[] and nothing is boxed.
+     */
+    private static final class IndexOrder {
+
+        private static final int INSERTION_SORT_THRESHOLD = 7;
+
+        private final int keyCount;
+        private final SortTerm[] keys;
+        private final boolean[] reverse;
+        private final SortKeys[] sortKeys;
+        private final long[] uids;
+
+        private IndexOrder(final SortTerm[] keys, final int keyCount, final boolean[] reverse, final SortKeys[] sortKeys, final long[] uids) {
+            this.keys = keys;
+            this.keyCount = keyCount;
+            this.reverse = reverse;
+            this.sortKeys = sortKeys;
+            this.uids = uids;
+        }
+
+        // messages equal in all keys are ordered by UID
+        private int compare(final int o1, final int o2) {
+            for (int i = 0; i < keyCount; i++) {
+                final int c = sortKeys[o1].compareBy(keys[i], sortKeys[o2]);
+
+                if (c != 0) {
+                    return reverse[i] ? -c : c;
+                }
+            }
+
+            return SortKeys.compare(uids[o1], uids[o2]);
+        }
+
+        /**
+         * Merge sort of dest in the range [low, high), src has to hold the same positions there and is used as buffer.
+         */
+        private void sort(final int[] src, final int[] dest, final int low, final int high) {
+            if (high - low < INSERTION_SORT_THRESHOLD) {
+                for (int i = low + 1; i < high; i++) {
+                    for (int j = i; j > low && compare(dest[j - 1], dest[j]) > 0; j--) {
+                        final int t = dest[j];
+                        dest[j] = dest[j - 1];
+                        dest[j - 1] = t;
+                    }
+                }
+
+                return;
+            }
+
+            final int mid = (low + high) >>> 1;
+            sort(dest, src, low, mid);
+            sort(dest, src, mid, high);
+
+            for (int i = low, p = low, q = mid; i < high; i++) {
+                if (q >= high || p < mid && compare(src[p], src[q]) <= 0) {
+                    dest[i] = src[p++];
+                } else {
+                    dest[i] = src[q++];
+                }
+            }
+        }
+    }
+
+    // one "Re:", "Fw:", "Fwd:" (with optional [blob]) or a [blob] at the start of a subject
+    private static final Pattern SUBJECT_LEADER = Pattern.compile("^(?:(?:re|fwd?)\\s*(?:\\[[^\\[\\]]*\\])?\\s*:|\\[[^\\[\\]]*\\])\\s*");
+    private static final String SUBJECT_TRAILER = "(fwd)";
+
+    /**
+     * @return the subject with "Re:", "Fwd:", list tags and "(fwd)" removed, whitespace collapsed and lower cased
+     */
+    static String baseSubject(final String subject) {
+        if (subject == null) {
+            return "";
+        }
+
+        String base = subject.replaceAll("\\s+", " ").trim().toLowerCase(Locale.ENGLISH);
+        boolean changed = true;
+
+        while (changed) {
+            changed = false;
+
+            while (base.endsWith(SUBJECT_TRAILER)) {
+                base = base.substring(0, base.length() - SUBJECT_TRAILER.length()).trim();
+                changed = true;
+            }
+
+            final Matcher leader = SUBJECT_LEADER.matcher(base);
+
+            // a [blob] is only removed if something remains
+            if (leader.find() && (base.charAt(0) != '[' || leader.end() < base.length())) {
+                base = base.substring(leader.end());
+                changed = true;
+            }
+
+            if (base.startsWith("[fwd:") && base.endsWith("]")) {
+                base = base.substring(5, base.length() - 1).trim();
+                changed = true;
+            }
+        }
+
+        return base;
+    }
+
+    // the mailbox (local part) of the first address
+    private static String mailbox(final Address[] addresses) {
+        if (addresses == null || addresses.length == 0) {
+            return "";
+        }
+
+        final String address = addresses[0] instanceof InternetAddress ? ((InternetAddress) addresses[0]).getAddress() : addresses[0]
+                .toString();
+
+        if (address == null) {
+            return "";
+        }
+
+        final int at = address.lastIndexOf('@');
+        return (at < 0 ? address : address.substring(0, at)).toLowerCase(Locale.ENGLISH);
+    }
+
+    private static int compare(final long a, final long b) {
+        return a < b ? -1 : a == b ? 0 : 1;
+    }
+
+    /**
+     * Sorts the messages by the given criteria, messages equal in all of them stay in UID order.
+     *
+     * @throws MessagingException
+     *             if a criterion is not supported or REVERSE is not followed by a criterion
+     */
+    static MockMessage[] sort(final MockMessage[] msgs, final SortTerm[] terms) throws MessagingException {
+        final SortTerm[] keys = new SortTerm[terms.length];
+        final boolean[] reverse = new boolean[terms.length];
+        int count = 0;
+
+        for (int i = 0; i < terms.length; i++) {
+            if (terms[i] == SortTerm.REVERSE) {
+                if (i == terms.length - 1 || terms[i + 1] == SortTerm.REVERSE) {
+                    throw new MessagingException("REVERSE must be followed by a sort criterion");
+                }
+
+                reverse[count] = true;
+                continue;
+            }
+
+            if (terms[i] != SortTerm.ARRIVAL && terms[i] != SortTerm.CC && terms[i] != SortTerm.DATE && terms[i] != SortTerm.FROM
+                    && terms[i] != SortTerm.SIZE && terms[i] != SortTerm.SUBJECT && terms[i] != SortTerm.TO) {
+                throw new MessagingException("SORT " + terms[i] + " not supported");
+            }
+
+            keys[count++] = terms[i];
+        }
+
+        final SortKeys[] sortKeys = new SortKeys[msgs.length];
+        final long[] uids = new long[msgs.length];
+        final int[] order = new int[msgs.length];
+
+        for (int i = 0; i < msgs.length; i++) {
+            sortKeys[i] = msgs[i].getSortKeys();
+            uids[i] = msgs[i].getMockid();
+            order[i] = i;
+        }
+
+        new IndexOrder(keys, count, reverse, sortKeys, uids).sort(order.clone(), order, 0, order.length);
+
+        final MockMessage[] sorted = new MockMessage[msgs.length];
+
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = msgs[order[i]];
+        }
+
+        return sorted;
+    }
+
+    private final long arrival;
+    private final String cc;
+    private final long date;
+    private final String from;
+    private final long size;
+    private final String subject;
+    private final String to;
+
+    /**
+     * @param received
+     *            the INTERNALDATE, may be null
+     * @param size
+     *            the size in bytes
+     */
+    SortKeys(final MockMessage msg, final Date received, final int size) throws MessagingException {
+        this.arrival = received == null ? 0 : received.getTime();
+        this.cc = mailbox(msg.getRecipients(RecipientType.CC));
+        // no or an invalid Date header sorts by INTERNALDATE
+        this.date = msg.getSentDate() == null ? arrival : msg.getSentDate().getTime();
+        this.from = mailbox(msg.getFrom());
+        this.size = size;
+        this.subject = baseSubject(msg.getSubject());
+        this.to = mailbox(msg.getRecipients(RecipientType.TO));
+    }
+
+    private int compareBy(final SortTerm key, final SortKeys other) {
+        if (key == SortTerm.ARRIVAL) {
+            return compare(arrival, other.arrival);
+        }
+
+        if (key == SortTerm.CC) {
+            return cc.compareTo(other.cc);
+        }
+
+        if (key == SortTerm.DATE) {
+            return compare(date, other.date);
+        }
+
+        if (key == SortTerm.FROM) {
+            return from.compareTo(other.from);
+        }
+
+        if (key == SortTerm.SIZE) {
+            return compare(size, other.size);
+        }
+
+        if (key == SortTerm.SUBJECT) {
+            return subject.compareTo(other.subject);
+        }
+
+        return to.compareTo(other.to);
+    }
+
+}
@@ -0,0 +1,333 @@
+/***********************************************************************************************************************
+ *
+ * JavaMail Mock2 Provider - open source mock classes for mock up JavaMail
+ * =======================================================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de)
+ * 
+ * Based on ideas from Kohsuke Kawaguchi's Mock-javamail (https://java.net/projects/mock-javamail)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.javamail.mock2;
+
+import java.util.Arrays;
+
+/**
+ * Messages of a {@link MailboxFolder} kept sorted by UID. UIDs are handed out in ascending order, so adding is an
+ * append to the slot arrays. Expunged messages leave a tombstone slot behind; a Fenwick tree over the live slots maps
+ * message numbers to slots and back in O(log n). Tombstones are compacted away once they make up half of the slots.
+ */
+final class UidIndex {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int MIN_TOMBSTONES_TO_COMPACT = 32;
+    /** Sent date key of a message without a (valid) Date header. */
+    static final long NO_DATE = Long.MIN_VALUE;
+
+    private MockMessage[] messages = new MockMessage[INITIAL_CAPACITY];
+    private long[] modSeqs = new long[INITIAL_CAPACITY];
+    // the key the message has in the sent date index, kept so removing it does not parse the Date header again
+    private long[] sentDates = new long[INITIAL_CAPACITY];
+    private int size;
+    private int[] sizes = new int[INITIAL_CAPACITY];
+    private int slotCount;
+    // 1-based Fenwick tree over the slots, 1 for a live slot, 0 for a tombstone
+    private int[] tree = new int[INITIAL_CAPACITY + 1];
+    private long[] uids = new long[INITIAL_CAPACITY];
+
+    /**
+     * @param messageSize
+     *            the size of the message in bytes as returned by {@link MockMessage#getSize()}
+     * @param sentDate
+     *            the time of the Date header or {@link #NO_DATE}
+     * @param modSeq
+     *            the mod-sequence of the message
+     */
+    void add(final MockMessage msg, final int messageSize, final long sentDate, final long modSeq) {
+        final long uid = msg.getMockid();
+
+        if (slotCount > 0 && uids[slotCount - 1] >= uid) {
+            throw new IllegalArgumentException("uid " + uid + " is not greater than last uid " + uids[slotCount - 1]);
+        }
+
+        if (slotCount == uids.length) {
+            final int newCapacity = slotCount + (slotCount >> 1) + 1;
+            uids = Arrays.copyOf(uids, newCapacity);
+            messages = Arrays.copyOf(messages, newCapacity);
+            sizes = Arrays.copyOf(sizes, newCapacity);
+            sentDates = Arrays.copyOf(sentDates, newCapacity);
+            modSeqs = Arrays.copyOf(modSeqs, newCapacity);
+            tree = Arrays.copyOf(tree, newCapacity + 1);
+        }
+
+        uids[slotCount] = uid;
+        messages[slotCount] = msg;
+        sizes[slotCount] = messageSize;
+        sentDates[slotCount] = sentDate;
+        modSeqs[slotCount] = modSeq;
+        slotCount++;
+        size++;
+
+        // the new node covers (p - lowbit(p), p], all slots but the new one are already counted
+        final int p = slotCount;
+        tree[p] = 1 + prefix(p - 1) - prefix(p - (p & -p));
+    }
+
+    void clear() {
+        uids = new long[INITIAL_CAPACITY];
+        messages = new MockMessage[INITIAL_CAPACITY];
+        sizes = new int[INITIAL_CAPACITY];
+        sentDates = new long[INITIAL_CAPACITY];
+        modSeqs = new long[INITIAL_CAPACITY];
+        tree = new int[INITIAL_CAPACITY + 1];
+        size = 0;
+        slotCount = 0;
+    }
+
+    /**
+     * Removes the tombstones and rebuilds the Fenwick tree in O(n).
+     */
+    void compact() {
+        int write = 0;
+
+        for (int read = 0; read < slotCount; read++) {
+            if (messages[read] != null) {
+                uids[write] = uids[read];
+                messages[write] = messages[read];
+                sizes[write] = sizes[read];
+                sentDates[write] = sentDates[read];
+                modSeqs[write] = modSeqs[read];
+                write++;
+            }
+        }
+
+        Arrays.fill(messages, write, slotCount, null);
+        slotCount = write;
+        Arrays.fill(tree, 0);
+
+        for (int p = 1; p <= slotCount; p++) {
+            tree[p] += 1;
+            final int parent = p + (p & -p);
+            if (parent <= slotCount) {
+                tree[parent] += tree[p];
+            }
+        }
+    }
+
+    MockMessage get(final long uid) {
+        final int slot = slotOf(uid);
+        return slot < 0 ? null : messages[slot];
+    }
+
+    /**
+     * @return the message or null if the slot is a tombstone
+     */
+    MockMessage getAtSlot(final int slot) {
+        return messages[slot];
+    }
+
+    MockMessage getByMsgNum(final int msgnum) {
+        if (msgnum < 1 || msgnum > size) {
+            throw new ArrayIndexOutOfBoundsException(msgnum);
+        }
+        return messages[select(msgnum)];
+    }
+
+    /**
+     * @return the message number of the message with the given uid or -1 if not present
+     */
+    int getMsgNum(final long uid) {
+        final int slot = slotOf(uid);
+        return slot < 0 ? -1 : prefix(slot + 1);
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the first slot with a UID greater than or equal to the given uid
+     */
+    int lowerBound(final long uid) {
+        return lowerBound(uid, 0);
+    }
+
+    /**
+     * Same as {@link #lowerBound(long)} but only looks at the slots from the given one on. Searching from the last
+     * position with a growing step turns a series of lookups with ascending UIDs into a merge join.
+     */
+    int lowerBound(final long uid, final int fromSlot) {
+        if (fromSlot >= slotCount) {
+            return slotCount;
+        }
+
+        int low = fromSlot;
+        int step = 1;
+
+        // gallop to find a window, then search it
+        while (low + step < slotCount && uids[low + step] < uid) {
+            low += step;
+            step <<= 1;
+        }
+
+        final int pos = Arrays.binarySearch(uids, low, Math.min(slotCount, low + step + 1), uid);
+        return pos < 0 ? -pos - 1 : pos;
+    }
+
+    long modSeqAtSlot(final int slot) {
+        return modSeqs[slot];
+    }
+
+    /**
+     * @return the message number the message in the given slot has or would have if live
+     */
+    int msgNumAtSlot(final int slot) {
+        return prefix(slot + 1);
+    }
+
+    private int prefix(int p) {
+        int sum = 0;
+        for (; p > 0; p -= p & -p) {
+            sum += tree[p];
+        }
+        return sum;
+    }
+
+    /**
+     * Turns the slot into a tombstone. Slots stay valid until {@link #compact()} is called.
+     */
+    void removeAtSlot(final int slot) {
+        if (messages[slot] == null) {
+            return;
+        }
+
+        messages[slot] = null;
+        size--;
+
+        for (int p = slot + 1; p <= slotCount; p += p & -p) {
+            tree[p]--;
+        }
+    }
+
+    /**
+     * @return the slot holding the given message number
+     */
+    private int select(final int msgnum) {
+        int pos = 0;
+        int remaining = msgnum;
+
+        for (int step = Integer.highestOneBit(slotCount); step > 0; step >>= 1) {
+            final int next = pos + step;
+            if (next <= slotCount && tree[next] < remaining) {
+                pos = next;
+                remaining -= tree[next];
+            }
+        }
+
+        return pos;
+    }
+
+    /**
+     * @return the sent date key stored for the slot or {@link #NO_DATE}
+     */
+    long sentDateAtSlot(final int slot) {
+        return sentDates[slot];
+    }
+
+    void setSentDateAtSlot(final int slot, final long sentDate) {
+        sentDates[slot] = sentDate;
+    }
+
+    void setModSeqAtSlot(final int slot, final long modSeq) {
+        modSeqs[slot] = modSeq;
+    }
+
+    boolean shouldCompact() {
+        final int tombstones = slotCount - size;
+        return tombstones >= MIN_TOMBSTONES_TO_COMPACT && tombstones > size;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the message size stored for the slot
+     */
+    int sizeAtSlot(final int slot) {
+        return sizes[slot];
+    }
+
+    int slotCount() {
+        return slotCount;
+    }
+
+    /**
+     * @return the highest UID of a live message or 0 if empty
+     */
+    long lastUid() {
+        return size == 0 ? 0 : uids[select(size)];
+    }
+
+    /**
+     * @return the slot of the live message with the given uid or -1
+     */
+    int slotOf(final long uid) {
+        final int pos = Arrays.binarySearch(uids, 0, slotCount, uid);
+        return pos < 0 || messages[pos] == null ? -1 : pos;
+    }
+
+    /**
+     * @return the live messages in the slot range [from, to)
+     */
+    MockMessage[] toArray(final int from, final int to) {
+        final int count = prefix(to) - prefix(from);
+
+        if (count == to - from) {
+            return Arrays.copyOfRange(messages, from, to);
+        }
+
+        final MockMessage[] ret = new MockMessage[count];
+        int i = 0;
+
+        for (int slot = from; slot < to && i < count; slot++) {
+            if (messages[slot] != null) {
+                ret[i++] = messages[slot];
+            }
+        }
+
+        return ret;
+    }
+
+    long uidAtSlot(final int slot) {
+        return uids[slot];
+    }
+
+    /**
+     * @return the slot after the last slot with a UID less than or equal to the given uid
+     */
+    int upperBound(final long uid) {
+        return upperBound(uid, 0);
+    }
+
+    int upperBound(final long uid, final int fromSlot) {
+        final int pos = lowerBound(uid, fromSlot);
+        return pos < slotCount && uids[pos] == uid ? pos + 1 : pos;
+    }
+
+}
@@ -0,0 +1,139 @@
+/***********************************************************************************************************************
+ *
+ * JavaMail Mock2 Provider - open source mock classes for mock up JavaMail
+ * =======================================================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de)
+ * 
+ * Based on ideas from Kohsuke Kawaguchi's Mock-javamail (https://java.net/projects/mock-javamail)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.javamail.mock2;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Growable list of UIDs in ascending order, used as posting list by the search indexes. UIDs are handed out in
+ * ascending order, so adding is an append. Removing leaves a tombstone behind, the list is compacted once the
+ * tombstones make up half of it, so removing many UIDs from a long list does not shift it every time.
+ */
+final class UidList {
+
+    private static final int MIN_TOMBSTONES_TO_COMPACT = 16;
+
+    // number of used positions in uids, including tombstones
+    private int length;
+    // positions removed, null until the first removal
+    private BitSet tombstones;
+    private int tombstoneCount;
+    private long[] uids = new long[4];
+
+    void add(final long uid) {
+        if (length > 0 && uids[length - 1] >= uid) {
+            if (uids[length - 1] == uid) {
+                if (tombstoneCount > 0 && tombstones.get(length - 1)) {
+                    tombstones.clear(length - 1);
+                    tombstoneCount--;
+                }
+
+                return;
+            }
+
+            throw new IllegalArgumentException("uid " + uid + " is not greater than last uid " + uids[length - 1]);
+        }
+
+        if (length == uids.length) {
+            uids = Arrays.copyOf(uids, length + (length >> 1) + 1);
+        }
+
+        uids[length++] = uid;
+    }
+
+    private void compact() {
+        int write = 0;
+
+        for (int read = 0; read < length; read++) {
+            if (!tombstones.get(read)) {
+                uids[write++] = uids[read];
+            }
+        }
+
+        length = write;
+        tombstones.clear();
+        tombstoneCount = 0;
+    }
+
+    /**
+     * Copies the UIDs into the given array.
+     *
+     * @return the position after the last copied UID
+     */
+    int copyTo(final long[] dest, final int pos) {
+        if (tombstoneCount == 0) {
+            System.arraycopy(uids, 0, dest, pos, length);
+            return pos + length;
+        }
+
+        int i = pos;
+
+        for (int read = 0; read < length; read++) {
+            if (!tombstones.get(read)) {
+                dest[i++] = uids[read];
+            }
+        }
+
+        return i;
+    }
+
+    void remove(final long uid) {
+        final int pos = Arrays.binarySearch(uids, 0, length, uid);
+
+        if (pos < 0) {
+            return;
+        }
+
+        if (tombstones == null) {
+            tombstones = new BitSet();
+        } else if (tombstones.get(pos)) {
+            return;
+        }
+
+        tombstones.set(pos);
+        tombstoneCount++;
+
+        if (tombstoneCount >= MIN_TOMBSTONES_TO_COMPACT && tombstoneCount > length - tombstoneCount) {
+            compact();
+        } else if (tombstoneCount == length) {
+            length = 0;
+            tombstones.clear();
+            tombstoneCount = 0;
+        }
+    }
+
+    int size() {
+        return length - tombstoneCount;
+    }
+
+    UidSet toUidSet() {
+        final long[] ret = new long[size()];
+        copyTo(ret, 0);
+        return UidSet.of(ret);
+    }
+
+}
@@ -0,0 +1,400 @@
+/***********************************************************************************************************************
+ *
+ * JavaMail Mock2 Provider - open source mock classes for mock up JavaMail
+ * =======================================================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de)
+ * 
+ * Based on ideas from Kohsuke Kawaguchi's Mock-javamail (https://java.net/projects/mock-javamail)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.javamail.mock2;
+
+import java.util.Arrays;
+
+import javax.mail.UIDFolder;
+
+/**
+ * Immutable set of UIDs stored as sorted, disjoint and non-adjacent ranges, like an IMAP sequence set
+ * ({@code 1:500,900:*}). {@code *} is kept as {@link Long#MAX_VALUE} until it is resolved against the highest UID of a
+ * folder with {@link #resolveStar(long)}.
+ */
+public final class UidSet {
+
+    public static final UidSet EMPTY = new UidSet(new long[0], new long[0]);
+
+    public static final long STAR = Long.MAX_VALUE;
+
+    /**
+     * @return a set of the given UIDs, which may be unsorted and contain duplicates
+     */
+    public static UidSet of(final long... uids) {
+        if (uids == null || uids.length == 0) {
+            return EMPTY;
+        }
+
+        final long[] sorted = uids.clone();
+        Arrays.sort(sorted);
+
+        final long[] starts = new long[sorted.length];
+        final long[] ends = new long[sorted.length];
+        int count = 0;
+
+        for (final long uid : sorted) {
+            if (count > 0 && uid <= ends[count - 1] + 1) {
+                ends[count - 1] = Math.max(ends[count - 1], uid);
+            } else {
+                starts[count] = uid;
+                ends[count] = uid;
+                count++;
+            }
+        }
+
+        return new UidSet(Arrays.copyOf(starts, count), Arrays.copyOf(ends, count));
+    }
+
+    /**
+     * Parses an IMAP sequence set like {@code 1:500,900:*}.
+     *
+     * @throws IllegalArgumentException
+     *             if the string is not a valid sequence set
+     */
+    public static UidSet parse(final String set) {
+        if (set == null || set.trim().length() == 0) {
+            throw new IllegalArgumentException("empty uid set");
+        }
+
+        final String[] parts = set.trim().split(",");
+        final long[] starts = new long[parts.length];
+        final long[] ends = new long[parts.length];
+
+        for (int i = 0; i < parts.length; i++) {
+            final String part = parts[i].trim();
+            final int colon = part.indexOf(':');
+
+            if (colon < 0) {
+                starts[i] = parseUid(part);
+                ends[i] = starts[i];
+            } else {
+                final long a = parseUid(part.substring(0, colon));
+                final long b = parseUid(part.substring(colon + 1));
+                starts[i] = Math.min(a, b);
+                ends[i] = Math.max(a, b);
+            }
+        }
+
+        return normalize(starts, ends);
+    }
+
+    private static long parseUid(final String uid) {
+        final String trimmed = uid.trim();
+
+        if ("*".equals(trimmed)) {
+            return STAR;
+        }
+
+        try {
+            final long value = Long.parseLong(trimmed);
+
+            if (value < 1) {
+                throw new IllegalArgumentException("uid " + trimmed + " is not valid");
+            }
+
+            return value;
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException("uid " + trimmed + " is not valid", e);
+        }
+    }
+
+    /**
+     * @param end
+     *            last UID of the range, {@link UIDFolder#LASTUID} or {@link #STAR} for {@code *}
+     * @return the set {@code start:end}
+     */
+    public static UidSet range(final long start, final long end) {
+        final long realEnd = end == UIDFolder.LASTUID ? STAR : end;
+        return new UidSet(new long[] { Math.min(start, realEnd) }, new long[] { Math.max(start, realEnd) });
+    }
+
+    /**
+     * Sorts and merges overlapping or adjacent ranges. The union only depends on which starts and ends there are, not on
+     * which start belongs to which end, so both are sorted on their own and there is a gap wherever the next start lies
+     * behind the end of the same rank. Every start must not be greater than its end.
+     */
+    private static UidSet normalize(final long[] starts, final long[] ends) {
+        final long[] sortedStarts = starts.clone();
+        final long[] sortedEnds = ends.clone();
+        Arrays.sort(sortedStarts);
+        Arrays.sort(sortedEnds);
+
+        final long[] newStarts = new long[starts.length];
+        final long[] newEnds = new long[ends.length];
+        int count = 0;
+
+        for (int i = 0; i < sortedStarts.length; i++) {
+            if (count == 0 || newEnds[count - 1] != STAR && sortedStarts[i] > newEnds[count - 1] + 1) {
+                newStarts[count] = sortedStarts[i];
+                count++;
+            }
+
+            newEnds[count - 1] = sortedEnds[i];
+        }
+
+        return new UidSet(Arrays.copyOf(newStarts, count), Arrays.copyOf(newEnds, count));
+    }
+
+    private final long[] ends;
+
+    private final long[] starts;
+
+    private UidSet(final long[] starts, final long[] ends) {
+        this.starts = starts;
+        this.ends = ends;
+    }
+
+    /**
+     * @return the UIDs from 1 to maxUid which are not in this set
+     */
+    public UidSet complement(final long maxUid) {
+        final long[] newStarts = new long[starts.length + 1];
+        final long[] newEnds = new long[starts.length + 1];
+        int count = 0;
+        long next = 1;
+
+        for (int i = 0; i < starts.length && next <= maxUid; i++) {
+            if (starts[i] > next) {
+                newStarts[count] = next;
+                newEnds[count] = Math.min(starts[i] - 1, maxUid);
+                count++;
+            }
+
+            next = ends[i] == STAR ? STAR : Math.max(next, ends[i] + 1);
+        }
+
+        if (next <= maxUid) {
+            newStarts[count] = next;
+            newEnds[count] = maxUid;
+            count++;
+        }
+
+        return new UidSet(Arrays.copyOf(newStarts, count), Arrays.copyOf(newEnds, count));
+    }
+
+    public boolean contains(final long uid) {
+        final int range = rangeOf(uid);
+        return range >= 0 && uid <= ends[range];
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final UidSet other = (UidSet) obj;
+        return Arrays.equals(starts, other.starts) && Arrays.equals(ends, other.ends);
+    }
+
+    /**
+     * @return the last UID of the given range, {@link #STAR} for {@code *}
+     */
+    public long getEnd(final int range) {
+        return ends[range];
+    }
+
+    public int getRangeCount() {
+        return starts.length;
+    }
+
+    public long getStart(final int range) {
+        return starts[range];
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(starts) + Arrays.hashCode(ends);
+    }
+
+    /**
+     * @return the UIDs contained in both sets
+     */
+    public UidSet intersect(final UidSet other) {
+        final int max = starts.length + other.starts.length;
+        final long[] newStarts = new long[max];
+        final long[] newEnds = new long[max];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+
+        while (i < starts.length && j < other.starts.length) {
+            final long start = Math.max(starts[i], other.starts[j]);
+            final long end = Math.min(ends[i], other.ends[j]);
+
+            if (start <= end) {
+                if (count > 0 && start == newEnds[count - 1] + 1) {
+                    newEnds[count - 1] = end;
+                } else {
+                    newStarts[count] = start;
+                    newEnds[count] = end;
+                    count++;
+                }
+            }
+
+            if (ends[i] < other.ends[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+
+        return new UidSet(Arrays.copyOf(newStarts, count), Arrays.copyOf(newEnds, count));
+    }
+
+    public boolean isEmpty() {
+        return starts.length == 0;
+    }
+
+    // index of the last range starting at or before uid, or -1
+    private int rangeOf(final long uid) {
+        final int pos = Arrays.binarySearch(starts, uid);
+        return pos >= 0 ? pos : -pos - 2;
+    }
+
+    /**
+     * @return this set with {@code *} replaced by the given highest UID, as the IMAP server does it. {@code 900:*}
+     *         becomes {@code maxUid:900} if there is no UID greater than 900.
+     */
+    public UidSet resolveStar(final long maxUid) {
+        if (isEmpty() || ends[ends.length - 1] != STAR) {
+            return this;
+        }
+
+        final long[] newStarts = starts.clone();
+        final long[] newEnds = ends.clone();
+        final int last = starts.length - 1;
+
+        if (newStarts[last] == STAR || newStarts[last] > maxUid) {
+            newEnds[last] = Math.max(newStarts[last] == STAR ? maxUid : newStarts[last], maxUid);
+            newStarts[last] = Math.min(newStarts[last], maxUid);
+        } else {
+            newEnds[last] = maxUid;
+        }
+
+        return normalize(newStarts, newEnds);
+    }
+
+    /**
+     * @return number of UIDs in this set, {@code *} counts as {@link #STAR}
+     */
+    public long size() {
+        long size = 0;
+
+        for (int i = 0; i < starts.length; i++) {
+            final long rangeSize = ends[i] - starts[i] + 1;
+
+            if (ends[i] == STAR || size + rangeSize < size) {
+                return STAR;
+            }
+
+            size += rangeSize;
+        }
+
+        return size;
+    }
+
+    /**
+     * @throws IllegalStateException
+     *             if the set contains {@code *} or more UIDs than an array can hold
+     */
+    public long[] toArray() {
+        final long size = size();
+
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("uid set " + this + " too large");
+        }
+
+        final long[] ret = new long[(int) size];
+        int i = 0;
+
+        for (int range = 0; range < starts.length; range++) {
+            for (long uid = starts[range]; uid <= ends[range]; uid++) {
+                ret[i++] = uid;
+            }
+        }
+
+        return ret;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < starts.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+
+            sb.append(starts[i] == STAR ? "*" : String.valueOf(starts[i]));
+
+            if (ends[i] != starts[i]) {
+                sb.append(':').append(ends[i] == STAR ? "*" : String.valueOf(ends[i]));
+            }
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * @return the UIDs contained in either set
+     */
+    public UidSet union(final UidSet other) {
+        if (other.isEmpty()) {
+            return this;
+        }
+
+        if (isEmpty()) {
+            return other;
+        }
+
+        final long[] newStarts = new long[starts.length + other.starts.length];
+        final long[] newEnds = new long[newStarts.length];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+
+        // merge by start, joining overlapping and adjacent ranges
+        while (i < starts.length || j < other.starts.length) {
+            final boolean takeThis = j == other.starts.length || i < starts.length && starts[i] <= other.starts[j];
+            final long start = takeThis ? starts[i] : other.starts[j];
+            final long end = takeThis ? ends[i++] : other.ends[j++];
+
+            if (count > 0 && (newEnds[count - 1] == STAR || start <= newEnds[count - 1] + 1)) {
+                newEnds[count - 1] = Math.max(newEnds[count - 1], end);
+            } else {
+                newStarts[count] = start;
+                newEnds[count] = end;
+                count++;
+            }
+        }
+
+        return new UidSet(Arrays.copyOf(newStarts, count), Arrays.copyOf(newEnds, count));
+    }
+
+}
@@ -26,8 +26,12 @@
 package de.saly.javamail.mock2.test;
 
 import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
 import java.util.Properties;
 
+import javax.mail.FetchProfile;
+import javax.mail.Flags;
 import javax.mail.Flags.Flag;
 import javax.mail.Folder;
 import javax.mail.Message;
@@ -36,20 +40,28 @@ import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.Store;
 import javax.mail.UIDFolder;
+import javax.mail.event.MailEvent;
+import javax.mail.event.MessageChangedEvent;
 import javax.mail.event.MessageCountEvent;
 import javax.mail.event.MessageCountListener;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
+import javax.mail.search.SubjectTerm;
 
 import org.junit.Assert;
 import org.junit.Test;
 
 import com.sun.mail.imap.IMAPFolder;
 import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.MessageVanishedEvent;
+import com.sun.mail.imap.ResyncData;
+import com.sun.mail.imap.SortTerm;
 
 import de.saly.javamail.mock2.MailboxFolder;
 import de.saly.javamail.mock2.MockMailbox;
+import de.saly.javamail.mock2.MockMessage;
 import de.saly.javamail.mock2.Providers;
+import de.saly.javamail.mock2.UidSet;
 import de.saly.javamail.mock2.test.support.MockTestException;
 
 public class IMAPTestCase extends AbstractTestCase {
@@ -261,6 +273,47 @@ public class IMAPTestCase extends AbstractTestCase {
 
     }
 
+    @Test
+    public void testCondstore() throws Exception {
+
+        final MockMailbox mb = MockMailbox.get("hendrik@unknown.com");
+        final MailboxFolder mf = mb.getInbox();
+
+        final MimeMessage msg = new MimeMessage((Session) null);
+        msg.setSubject("Test");
+        msg.setFrom("from@sender.com");
+        msg.setText("Some text here ...");
+
+        for (int i = 0; i < 5; i++) {
+            mf.add(msg); // 11 - 15
+        }
+
+        final Store store = session.getStore();
+        store.connect("hendrik@unknown.com", null);
+        Assert.assertTrue(((IMAPStore) store).hasCapability("CONDSTORE"));
+        final IMAPFolder inbox = (IMAPFolder) store.getFolder("INBOX");
+        inbox.open(Folder.READ_WRITE);
+
+        final long modSeq = inbox.getHighestModSeq();
+        Assert.assertEquals(0, inbox.getMessagesByUIDChangedSince(1, UIDFolder.LASTUID, modSeq).length);
+        Assert.assertEquals(5, inbox.getMessagesByUIDChangedSince(1, UIDFolder.LASTUID, 0).length);
+
+        inbox.setFlags(new Message[] { inbox.getMessageByUID(14), inbox.getMessageByUID(12) }, new Flags(Flag.SEEN), true);
+        Assert.assertEquals(modSeq + 2, inbox.getHighestModSeq());
+        Assert.assertArrayEquals(new long[] { 12, 14 }, uids(inbox, inbox.getMessagesByUIDChangedSince(1, UIDFolder.LASTUID, modSeq)));
+        Assert.assertArrayEquals(new long[] { 14 }, uids(inbox, inbox.getMessagesByUIDChangedSince(13, 15, modSeq)));
+        Assert.assertEquals(modSeq + 2, ((MockMessage) mf.getById(12)).getModSeq() + 1);
+
+        mf.add(msg); // 16
+        Assert.assertArrayEquals(new long[] { 12, 14, 16 }, uids(inbox, inbox.getMessagesByUIDChangedSince(1, UIDFolder.LASTUID, modSeq)));
+
+        mf.setFlags(UidSet.of(14), new Flags(Flag.DELETED), true);
+        mf.expunge();
+        Assert.assertEquals(modSeq + 5, inbox.getHighestModSeq());
+        Assert.assertArrayEquals(new long[] { 12, 16 }, uids(inbox, inbox.getMessagesByUIDChangedSince(1, UIDFolder.LASTUID, modSeq)));
+        inbox.close(false);
+    }
+
     @Test
     public void testDefaultFolder() throws Exception {
 
@@ -304,6 +357,98 @@ public class IMAPTestCase extends AbstractTestCase {
         inbox.close(true);
     }
 
+    @Test
+    public void testFetch() throws Exception {
+
+        final MockMailbox mb = MockMailbox.get("hendrik@unknown.com");
+        mb.setParallelSearchThreshold(2);
+        final MailboxFolder mf = mb.getInbox();
+
+        for (int i = 0; i < 3; i++) {
+            final MimeMessage msg = new MimeMessage((Session) null);
+            msg.setSubject("Test " + i);
+            msg.setFrom("from@sender.com");
+            msg.setText("Some text here ...");
+            msg.setRecipient(RecipientType.TO, new InternetAddress("hendrik@unknown.com"));
+            mf.add(msg); // 11 - 13
+        }
+
+        final Store store = session.getStore();
+        store.connect("hendrik@unknown.com", null);
+        final Folder inbox = store.getFolder("INBOX");
+        inbox.open(Folder.READ_WRITE);
+        final Message[] msgs = inbox.getMessages();
+
+        // changed after the messages were listed
+        mf.getById(12).setFlag(Flag.SEEN, true);
+        Assert.assertFalse(msgs[1].isSet(Flag.SEEN));
+
+        final FetchProfile fp = new FetchProfile();
+        fp.add(FetchProfile.Item.ENVELOPE);
+        fp.add(FetchProfile.Item.FLAGS);
+        fp.add(UIDFolder.FetchProfileItem.UID);
+        fp.add("X-Mock-Folder");
+        inbox.fetch(msgs, fp);
+
+        Assert.assertTrue(msgs[1].isSet(Flag.SEEN));
+        Assert.assertFalse(msgs[0].isSet(Flag.SEEN));
+
+        for (int i = 0; i < msgs.length; i++) {
+            Assert.assertEquals("Test " + i, msgs[i].getSubject());
+            Assert.assertEquals(new InternetAddress("from@sender.com"), msgs[i].getFrom()[0]);
+            Assert.assertEquals(new InternetAddress("hendrik@unknown.com"), msgs[i].getRecipients(RecipientType.TO)[0]);
+            Assert.assertNull(msgs[i].getRecipients(RecipientType.CC));
+            Assert.assertEquals("INBOX", msgs[i].getHeader("X-Mock-Folder")[0]);
+            Assert.assertEquals(11L + i, ((UIDFolder) inbox).getUID(msgs[i]));
+        }
+
+        // the prefetched fields are shared but handed out as copies
+        ((InternetAddress) msgs[0].getFrom()[0]).setAddress("changed@sender.com");
+        Assert.assertEquals(new InternetAddress("from@sender.com"), msgs[0].getFrom()[0]);
+        Assert.assertEquals(new InternetAddress("from@sender.com"), inbox.getMessage(1).getFrom()[0]);
+        Assert.assertEquals("Test 0", mf.getById(11).getSubject());
+        inbox.close(false);
+    }
+
+    @Test
+    public void testFlagCounts() throws Exception {
+
+        final MockMailbox mb = MockMailbox.get("hendrik@unknown.com");
+        final MailboxFolder mf = mb.getInbox();
+
+        final MimeMessage msg = new MimeMessage((Session) null);
+        msg.setSubject("Test");
+        msg.setFrom("from@sender.com");
+        msg.setText("Some text here ...");
+        msg.setRecipient(RecipientType.TO, new InternetAddress("hendrik@unknown.com"));
+        mf.add(msg); // 11
+        mf.add(msg); // 12
+        mf.add(msg); // 13
+
+        final Store store = session.getStore();
+        store.connect("hendrik@unknown.com", null);
+        final Folder inbox = store.getFolder("INBOX");
+        inbox.open(Folder.READ_WRITE);
+
+        Assert.assertEquals(3, inbox.getUnreadMessageCount());
+        Assert.assertEquals(3, inbox.getNewMessageCount());
+        Assert.assertEquals(0, inbox.getDeletedMessageCount());
+
+        inbox.getMessage(1).setFlag(Flag.SEEN, true);
+        inbox.getMessage(2).setFlag(Flag.DELETED, true);
+
+        Assert.assertEquals(2, inbox.getUnreadMessageCount());
+        Assert.assertEquals(1, inbox.getDeletedMessageCount());
+
+        inbox.close(true);
+        inbox.open(Folder.READ_WRITE);
+
+        Assert.assertEquals(2, inbox.getMessageCount());
+        Assert.assertEquals(1, inbox.getUnreadMessageCount());
+        Assert.assertEquals(0, inbox.getDeletedMessageCount());
+        inbox.close(false);
+    }
+
     @Test
     public void testIDLESupported() throws Exception {
 
@@ -351,6 +496,116 @@ public class IMAPTestCase extends AbstractTestCase {
 
     }
 
+    @Test
+    public void testMessageViews() throws Exception {
+
+        final MockMailbox mb = MockMailbox.get("hendrik@unknown.com");
+        final MailboxFolder mf = mb.getInbox();
+
+        final MimeMessage msg = new MimeMessage((Session) null);
+        msg.setSubject("Test");
+        msg.setFrom("from@sender.com");
+        msg.setText("Some text here ...");
+        mf.add(msg); // 11
+        mf.add(msg); // 12
+
+        final Store store = session.getStore();
+        store.connect("hendrik@unknown.com", null);
+        final Folder inbox = store.getFolder("INBOX");
+        inbox.open(Folder.READ_WRITE);
+
+        final Message[] views = inbox.getMessages();
+        final Message first = inbox.getMessage(1);
+        Assert.assertNotSame(views[0], first);
+        Assert.assertSame(inbox, first.getFolder());
+        Assert.assertEquals(1, first.getMessageNumber());
+        Assert.assertEquals("Test", first.getSubject());
+        Assert.assertEquals("Some text here ...", first.getContent());
+        Assert.assertEquals("Some text here ...", views[0].getContent());
+        Assert.assertEquals(mf.getById(11).getSize(), first.getSize());
+        Assert.assertArrayEquals(mf.getById(11).getHeader("Message-ID"), views[0].getHeader("Message-ID"));
+
+        first.setFlag(Flag.SEEN, true);
+        Assert.assertTrue(mf.getById(11).isSet(Flag.SEEN));
+        Assert.assertTrue(inbox.getMessage(1).isSet(Flag.SEEN));
+        Assert.assertFalse(mf.getById(12).isSet(Flag.SEEN));
+
+        try {
+            first.setSubject("Changed");
+            Assert.fail();
+        } catch (final MessagingException e) {
+            // expected
+        }
+
+        Assert.assertEquals("Test", views[0].getSubject());
+        inbox.close(false);
+    }
+
+    @Test
+    public void testMessageNumbersPinnedPerSession() throws Exception {
+
+        final MockMailbox mb = MockMailbox.get("hendrik@unknown.com");
+        final MailboxFolder mf = mb.getInbox();
+
+        final MimeMessage msg = new MimeMessage((Session) null);
+        msg.setSubject("Test");
+        msg.setFrom("from@sender.com");
+        msg.setText("Some text here ...");
+        msg.setRecipient(RecipientType.TO, new InternetAddress("hendrik@unknown.com"));
+        mf.add(msg); // 11
+        mf.add(msg); // 12
+        mf.add(msg); // 13
+
+        final Store store = session.getStore();
+        store.connect("hendrik@unknown.com", null);
+        final Folder inbox = store.getFolder("INBOX");
+        inbox.open(Folder.READ_WRITE);
+        Assert.assertEquals(3, inbox.getMessageCount());
+
+        // changes by someone else
+        mf.getById(11).setFlag(Flag.DELETED, true);
+        mf.expunge();
+        mf.add(msg); // 14
+
+        Assert.assertEquals(11L, ((UIDFolder) inbox).getUID(inbox.getMessage(1)));
+        Assert.assertEquals(2, inbox.getMessage(2).getMessageNumber());
+
+        Assert.assertEquals(3, inbox.getMessageCount());
+        Assert.assertEquals(12L, ((UIDFolder) inbox).getUID(inbox.getMessage(1)));
+        Assert.assertEquals(14L, ((UIDFolder) inbox).getUID(inbox.getMessage(3)));
+        inbox.close(false);
+    }
+
+    @Test
+    public void testSearchRestricted() throws Exception {
+
+        final MockMailbox mb = MockMailbox.get("hendrik@unknown.com");
+        final MailboxFolder mf = mb.getInbox();
+
+        final MimeMessage msg = new MimeMessage((Session) null);
+        msg.setSubject("Test");
+        msg.setFrom("from@sender.com");
+        msg.setText("Some text here ...");
+        msg.setRecipient(RecipientType.TO, new InternetAddress("hendrik@unknown.com"));
+        mf.add(msg); // 11
+        mf.add(msg); // 12
+        mf.add(msg); // 13
+
+        final Store store = session.getStore();
+        store.connect("hendrik@unknown.com", null);
+        final Folder inbox = store.getFolder("INBOX");
+        inbox.open(Folder.READ_WRITE);
+
+        Assert.assertEquals(3, inbox.search(new SubjectTerm("Test")).length);
+
+        final Message[] found = inbox.search(new SubjectTerm("Test"), new Message[] { inbox.getMessage(3), inbox.getMessage(2) });
+        Assert.assertEquals(2, found.length);
+        Assert.assertEquals(12L, ((UIDFolder) inbox).getUID(found[0]));
+        Assert.assertEquals(13L, ((UIDFolder) inbox).getUID(found[1]));
+        Assert.assertEquals(0, inbox.search(new SubjectTerm("Other"), inbox.getMessages()).length);
+        inbox.close(false);
+    }
+
     @Test
     public void testNotOnlyInbox() throws Exception {
 
@@ -380,6 +635,55 @@ public class IMAPTestCase extends AbstractTestCase {
 
     }
 
+    @Test
+    public void testQresync() throws Exception {
+
+        final MockMailbox mb = MockMailbox.get("hendrik@unknown.com");
+        final MailboxFolder mf = mb.getInbox();
+
+        final MimeMessage msg = new MimeMessage((Session) null);
+        msg.setSubject("Test");
+        msg.setFrom("from@sender.com");
+        msg.setText("Some text here ...");
+
+        for (int i = 0; i < 5; i++) {
+            mf.add(msg); // 11 - 15
+        }
+
+        final Store store = session.getStore();
+        store.connect("hendrik@unknown.com", null);
+        Assert.assertTrue(((IMAPStore) store).hasCapability("QRESYNC"));
+        final IMAPFolder inbox = (IMAPFolder) store.getFolder("INBOX");
+        inbox.open(Folder.READ_WRITE);
+        final long uidValidity = inbox.getUIDValidity();
+        final long modSeq = inbox.getHighestModSeq();
+        inbox.close(false);
+
+        mf.setFlags(UidSet.of(12), new Flags(Flag.SEEN), true);
+        mf.setFlags(UidSet.of(13), new Flags(Flag.DELETED), true);
+        mf.expunge();
+        mf.add(msg); // 16
+
+        List<MailEvent> events = inbox.open(Folder.READ_WRITE, new ResyncData(uidValidity, modSeq));
+        Assert.assertEquals(3, events.size());
+        Assert.assertArrayEquals(new long[] { 13 }, ((MessageVanishedEvent) events.get(0)).getUIDs());
+        Assert.assertEquals(12L, inbox.getUID(((MessageChangedEvent) events.get(1)).getMessage()));
+        Assert.assertEquals(16L, inbox.getUID(((MessageChangedEvent) events.get(2)).getMessage()));
+        inbox.close(false);
+
+        events = inbox.open(Folder.READ_WRITE, new ResyncData(uidValidity, modSeq, 14, 20));
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals(16L, inbox.getUID(((MessageChangedEvent) events.get(0)).getMessage()));
+        inbox.close(false);
+
+        Assert.assertEquals(0, inbox.open(Folder.READ_WRITE, new ResyncData(uidValidity + 1, modSeq)).size());
+        inbox.close(false);
+
+        Assert.assertNull(inbox.open(Folder.READ_WRITE, ResyncData.CONDSTORE));
+        Assert.assertTrue(inbox.isOpen());
+        inbox.close(false);
+    }
+
     @Test(expected = MockTestException.class)
     public void testQUOTAUnsupported() throws Exception {
 
@@ -462,4 +766,89 @@ public class IMAPTestCase extends AbstractTestCase {
         Assert.assertEquals(2, root.list().length);
     }
 
+    @Test
+    public void testSort() throws Exception {
+
+        final MockMailbox mb = MockMailbox.get("hendrik@unknown.com");
+        final MailboxFolder mf = mb.getInbox();
+        final String[] subjects = new String[] { "Re: banana", "apple", "[list] Fwd: cherry", "Banana (fwd)", "RE: re: Apple" };
+        final String[] froms = new String[] { "zed@sender.com", "amy@sender.com", "bob@other.com", "amy@sender.com", "carl@sender.com" };
+        final long now = System.currentTimeMillis() / 1000 * 1000;
+
+        for (int i = 0; i < subjects.length; i++) {
+            final MimeMessage msg = new MimeMessage((Session) null);
+            msg.setSubject(subjects[i]);
+            msg.setFrom(froms[i]);
+            msg.setText(i % 2 == 0 ? "Short" : "Some longer text here ...");
+            msg.setSentDate(new Date(now - (i * 7 % 5) * 60000L));
+            mf.add(msg); // 11 - 15
+        }
+
+        final Store store = session.getStore();
+        store.connect("hendrik@unknown.com", null);
+        Assert.assertTrue(((IMAPStore) store).hasCapability("SORT"));
+        Assert.assertTrue(((IMAPStore) store).hasCapability("imap4rev1"));
+        final IMAPFolder inbox = (IMAPFolder) store.getFolder("INBOX");
+        inbox.open(Folder.READ_ONLY);
+
+        Assert.assertArrayEquals(new long[] { 12, 15, 11, 14, 13 }, uids(inbox, inbox.getSortedMessages(new SortTerm[] { SortTerm.SUBJECT })));
+        Assert.assertArrayEquals(new long[] { 13, 11, 14, 12, 15 },
+                uids(inbox, inbox.getSortedMessages(new SortTerm[] { SortTerm.REVERSE, SortTerm.SUBJECT })));
+        Assert.assertArrayEquals(new long[] { 12, 14, 13, 15, 11 }, uids(inbox, inbox.getSortedMessages(new SortTerm[] { SortTerm.FROM })));
+        Assert.assertArrayEquals(new long[] { 12, 14, 11, 13, 15 },
+                uids(inbox, inbox.getSortedMessages(new SortTerm[] { SortTerm.REVERSE, SortTerm.SIZE, SortTerm.ARRIVAL })));
+        Assert.assertArrayEquals(new long[] { 13, 15, 12, 14, 11 }, uids(inbox, inbox.getSortedMessages(new SortTerm[] { SortTerm.DATE })));
+        Assert.assertArrayEquals(new long[] { 11, 12, 13, 14, 15 }, uids(inbox, inbox.getSortedMessages(new SortTerm[] { SortTerm.TO })));
+        Assert.assertArrayEquals(new long[] { 12, 15 },
+                uids(inbox, inbox.getSortedMessages(new SortTerm[] { SortTerm.SUBJECT }, new SubjectTerm("apple"))));
+
+        // views of the pinned snapshot numbered like getMessage(int) does
+        final Message[] bySubject = inbox.getSortedMessages(new SortTerm[] { SortTerm.SUBJECT });
+        final int[] msgnums = new int[] { 2, 5, 1, 4, 3 };
+
+        for (int i = 0; i < bySubject.length; i++) {
+            Assert.assertSame(inbox, bySubject[i].getFolder());
+            Assert.assertEquals(msgnums[i], bySubject[i].getMessageNumber());
+        }
+
+        for (int i = 0; i < 10; i++) {
+            final MimeMessage msg = new MimeMessage((Session) null);
+            msg.setSubject("item " + i * 7 % 10);
+            msg.setText("Item");
+            mf.add(msg); // 16 - 25
+        }
+
+        Assert.assertEquals(5, inbox.getSortedMessages(new SortTerm[] { SortTerm.SUBJECT }).length);
+        Assert.assertEquals(0, inbox.getSortedMessages(new SortTerm[] { SortTerm.SUBJECT }, new SubjectTerm("item")).length);
+
+        // NOOP
+        Assert.assertEquals(15, inbox.getMessageCount());
+        final long[] items = new long[10];
+
+        for (int i = 0; i < items.length; i++) {
+            items[i] = 16 + i * 3 % 10;
+        }
+
+        Assert.assertArrayEquals(items, uids(inbox, inbox.getSortedMessages(new SortTerm[] { SortTerm.SUBJECT }, new SubjectTerm("item"))));
+
+        try {
+            inbox.getSortedMessages(new SortTerm[] { SortTerm.SIZE, SortTerm.REVERSE });
+            Assert.fail();
+        } catch (final MessagingException e) {
+            // expected
+        }
+
+        inbox.close(false);
+    }
+
+    private static long[] uids(final UIDFolder folder, final Message[] msgs) throws MessagingException {
+        final long[] uids = new long[msgs.length];
+
+        for (int i = 0; i < msgs.length; i++) {
+            uids[i] = folder.getUID(msgs[i]);
+        }
+
+        return uids;
+    }
+
 }
@@ -0,0 +1,199 @@
+/***********************************************************************************************************************
+ *
+ * JavaMail Mock2 Provider - open source mock classes for mock up JavaMail
+ * =======================================================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de)
+ * 
+ * Based on ideas from Kohsuke Kawaguchi's Mock-javamail (https://java.net/projects/mock-javamail)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.javamail.mock2.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.mail.Flags;
+import javax.mail.Flags.Flag;
+import javax.mail.Message.RecipientType;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.log4j.Level;
+
+import de.saly.javamail.mock2.MailboxFolder;
+import de.saly.javamail.mock2.MockMailbox;
+
+/**
+ * Measures how the read throughput of a {@link MailboxFolder} scales with the number of reader threads, with and
+ * without a concurrent writer. Not a unit test, run it with {@code main()}.
+ * <p>
+ * Arguments: message count (default 20000), milliseconds per run (default 2000), max threads (default number of cores)
+ */
+public class MailboxFolderBenchmark {
+
+    private static class Reader extends Thread {
+        private final MailboxFolder folder;
+        private long ops;
+        private final CountDownLatch start;
+        private final AtomicBoolean stop;
+
+        public Reader(final MailboxFolder folder, final CountDownLatch start, final AtomicBoolean stop) {
+            super();
+            this.folder = folder;
+            this.start = start;
+            this.stop = stop;
+        }
+
+        protected long getOps() {
+            return ops;
+        }
+
+        @Override
+        public void run() {
+            try {
+                start.await();
+            } catch (final InterruptedException e) {
+                return;
+            }
+
+            int i = (int) getId();
+            final Flags seen = new Flags(Flag.SEEN);
+
+            while (!stop.get()) {
+                final int count = folder.getMessageCount();
+                final int msgnum = 1 + (i++ & Integer.MAX_VALUE) % count;
+                folder.getByMsgNum(msgnum);
+                folder.getById(11 + msgnum);
+                folder.getCountByFlags(seen, false);
+                folder.getStatus();
+                ops += 4;
+            }
+        }
+    }
+
+    private static class Writer extends Thread {
+        private final MailboxFolder folder;
+        private final MimeMessage msg;
+        private long ops;
+        private final CountDownLatch start;
+        private final AtomicBoolean stop;
+
+        public Writer(final MailboxFolder folder, final MimeMessage msg, final CountDownLatch start, final AtomicBoolean stop) {
+            super();
+            this.folder = folder;
+            this.msg = msg;
+            this.start = start;
+            this.stop = stop;
+        }
+
+        protected long getOps() {
+            return ops;
+        }
+
+        @Override
+        public void run() {
+            try {
+                start.await();
+
+                while (!stop.get()) {
+                    folder.add(msg);
+                    folder.getByMsgNum(1 + (int) (ops % folder.getMessageCount())).setFlag(Flag.SEEN, ops % 2 == 0);
+                    ops += 2;
+                }
+            } catch (final Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public static void main(final String[] args) throws Exception {
+
+        org.apache.log4j.Logger.getLogger("de.saly.javamail.mock2").setLevel(Level.WARN);
+
+        final int messageCount = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        final long millis = args.length > 1 ? Long.parseLong(args[1]) : 2000;
+        final int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        final MockMailbox mb = MockMailbox.get("benchmark@unknown.com");
+        final MailboxFolder mf = mb.getInbox();
+
+        final MimeMessage msg = new MimeMessage((Session) null);
+        msg.setSubject("Test");
+        msg.setFrom("from@sender.com");
+        msg.setText("Some text here ...");
+        msg.setRecipient(RecipientType.TO, new InternetAddress("benchmark@unknown.com"));
+
+        for (int i = 0; i < messageCount; i++) {
+            mf.add(msg);
+        }
+
+        System.out.println(messageCount + " messages, " + millis + " ms per run, " + Runtime.getRuntime().availableProcessors()
+                + " cores");
+        System.out.println("threads\treader ops/s\treader ops/s per thread\twriter ops/s");
+
+        // warm up
+        run(mf, msg, 1, false, millis);
+
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            run(mf, msg, threads, false, millis);
+            run(mf, msg, threads, true, millis);
+        }
+    }
+
+    private static void run(final MailboxFolder mf, final MimeMessage msg, final int threads, final boolean withWriter,
+            final long millis) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean stop = new AtomicBoolean();
+        final List<Reader> readers = new ArrayList<Reader>();
+
+        for (int i = 0; i < threads; i++) {
+            final Reader reader = new Reader(mf, start, stop);
+            reader.start();
+            readers.add(reader);
+        }
+
+        final Writer writer = withWriter ? new Writer(mf, msg, start, stop) : null;
+
+        if (writer != null) {
+            writer.start();
+        }
+
+        start.countDown();
+        Thread.sleep(millis);
+        stop.set(true);
+
+        long ops = 0;
+        for (final Reader reader : readers) {
+            reader.join();
+            ops += reader.getOps();
+        }
+
+        if (writer != null) {
+            writer.join();
+        }
+
+        final long perSecond = ops * 1000 / millis;
+        System.out.println(threads + (withWriter ? " +w" : "") + "\t" + perSecond + "\t" + perSecond / threads + "\t"
+                + (writer == null ? "-" : String.valueOf(writer.getOps() * 1000 / millis)));
+    }
+
+}
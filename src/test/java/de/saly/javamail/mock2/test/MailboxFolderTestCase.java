@@ -25,17 +25,55 @@
  **********************************************************************************************************************/
 package de.saly.javamail.mock2.test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
+
+import javax.mail.Flags;
+import javax.mail.Flags.Flag;
 import javax.mail.IllegalWriteException;
+import javax.mail.Message;
 import javax.mail.Message.RecipientType;
 import javax.mail.Session;
+import javax.mail.UIDFolder;
 import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.search.AndTerm;
+import javax.mail.search.BodyTerm;
+import javax.mail.search.ComparisonTerm;
+import javax.mail.search.FlagTerm;
+import javax.mail.search.FromStringTerm;
+import javax.mail.search.HeaderTerm;
+import javax.mail.search.MessageIDTerm;
+import javax.mail.search.NotTerm;
+import javax.mail.search.OrTerm;
+import javax.mail.search.ReceivedDateTerm;
+import javax.mail.search.RecipientStringTerm;
+import javax.mail.search.SearchTerm;
+import javax.mail.search.SentDateTerm;
+import javax.mail.search.SizeTerm;
+import javax.mail.search.SubjectTerm;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import de.saly.javamail.mock2.CompressedBodyStore;
 import de.saly.javamail.mock2.MailboxFolder;
+import de.saly.javamail.mock2.MailboxFolder.MailboxEventListener;
+import de.saly.javamail.mock2.MappedBodyStore;
 import de.saly.javamail.mock2.MockMailbox;
+import de.saly.javamail.mock2.MockMessage;
+import de.saly.javamail.mock2.UidSet;
 import de.saly.javamail.mock2.test.support.MockTestException;
 
 public class MailboxFolderTestCase extends AbstractTestCase {
@@ -57,6 +95,74 @@ public class MailboxFolderTestCase extends AbstractTestCase {
         Assert.assertEquals(1, mf.getChildren().get(0).getChildren().size());
     }
 
+    @Test
+    public void testAddAll() throws Exception {
+
+        final MockMailbox mb = MockMailbox.get("hendrik@unknown.com");
+        final MailboxFolder mf = mb.getInbox();
+        final List<MockMessage[]> events = new ArrayList<MockMessage[]>();
+
+        mf.addMailboxEventListener(new MailboxEventListener() {
+
+            @Override
+            public void folderCreated(final MailboxFolder mf) {
+            }
+
+            @Override
+            public void folderDeleted(final MailboxFolder mf) {
+            }
+
+            @Override
+            public void folderRenamed(final String from, final MailboxFolder to) {
+            }
+
+            @Override
+            public void messageChanged(final MailboxFolder mf, final MockMessage msg, final boolean headerChanged,
+                    final boolean flagsChanged) {
+            }
+
+            @Override
+            public void messagesExpunged(final MailboxFolder mf, final MockMessage[] msgs, final boolean removed) {
+            }
+
+            @Override
+            public void messagesAdded(final MailboxFolder mf, final MockMessage[] msgs) {
+                events.add(msgs);
+            }
+
+            @Override
+            public void uidInvalidated() {
+            }
+        });
+
+        final MimeMessage[] msgs = new MimeMessage[100];
+
+        for (int i = 0; i < msgs.length; i++) {
+            msgs[i] = new MimeMessage((Session) null);
+            msgs[i].setSubject("Test " + i);
+            msgs[i].setFrom("from@sender.com");
+            msgs[i].setText("Some text here ...");
+        }
+
+        mf.add(msgs[0]); // 11
+        final Message[] added = mf.addAll(msgs); // 12 - 111
+
+        Assert.assertEquals(100, added.length);
+        Assert.assertEquals(101, mf.getMessageCount());
+        Assert.assertEquals(2, events.size());
+        Assert.assertEquals(100, events.get(1).length);
+
+        for (int i = 0; i < added.length; i++) {
+            Assert.assertEquals(12L + i, mf.getUID(added[i]));
+            Assert.assertEquals("Test " + i, mf.getById(12L + i).getSubject());
+            Assert.assertTrue(added[i].isSet(Flag.RECENT));
+        }
+
+        Assert.assertEquals(101, mf.getStatus().getRecentCount());
+        Assert.assertEquals(112L, mf.getStatus().getUidNext());
+        Assert.assertEquals(0, mf.addAll(new MimeMessage[0]).length);
+    }
+
     @Test
     public void testAddMessages() throws Exception {
 
@@ -82,6 +188,111 @@ public class MailboxFolderTestCase extends AbstractTestCase {
 
     }
 
+    @Test
+    public void testBodyIndex() throws Exception {
+
+        final MockMailbox mb = MockMailbox.get("hendrik@unknown.com");
+        // no cache, so every read of a message counts as a miss
+        final CompressedBodyStore bodyStore = new CompressedBodyStore(0, Deflater.BEST_SPEED);
+        mb.setBodyStore(bodyStore);
+        final MailboxFolder mf = mb.getInbox();
+
+        for (int i = 0; i < 40; i++) {
+            final MimeMessage msg = new MimeMessage((Session) null);
+            msg.setSubject("Test " + i);
+            msg.setFrom("from@sender.com");
+
+            if (i % 4 == 0) {
+                msg.setContent("<html><body>Quarterly <b>Report</b> " + i + "</body></html>", "text/html");
+            } else {
+                msg.setText("Hello world, this is message number " + i % 3 + ".");
+            }
+
+            mf.add(msg); // 11 - 50
+        }
+
+        final SearchTerm[] terms = new SearchTerm[] { new BodyTerm("world"), new BodyTerm("report"), new BodyTerm("number 2"),
+                new BodyTerm("ORLD, THIS"), new BodyTerm("nothing"), new BodyTerm("."),
+                new AndTerm(new BodyTerm("hello"), new SubjectTerm("test 1")) };
+        final int[] expected = new int[] { 30, 10, 10, 30, 0, 30, 9 };
+
+        for (int i = 0; i < terms.length; i++) {
+            Assert.assertEquals(expected[i], mf.search(terms[i], null).length);
+        }
+
+        mb.setBodyIndexEnabled(true);
+
+        for (int i = 0; i < terms.length; i++) {
+            Assert.assertEquals(expected[i], mf.search(terms[i], null).length);
+        }
+
+        final MimeMessage msg = new MimeMessage((Session) null);
+        msg.setSubject("Test");
+        msg.setFrom("from@sender.com");
+        msg.setText("Another report");
+        mf.add(msg); // 51, indexed on add
+        Assert.assertEquals(11, mf.search(new BodyTerm("report"), null).length);
+        Assert.assertEquals(1, mf.search(new BodyTerm("report"), new Message[] { mf.getById(51), mf.getById(12) }).length);
+
+        // pruning the index of expunged messages does not read them again
+        final long misses = bodyStore.getMisses();
+        Assert.assertTrue(misses > 0);
+        mf.setFlags(UidSet.parse("11:30"), new Flags(Flag.DELETED), true);
+        mf.expunge();
+        Assert.assertEquals(misses, bodyStore.getMisses());
+        Assert.assertEquals(6, mf.search(new BodyTerm("report"), null).length);
+        Assert.assertEquals(15, mf.search(new BodyTerm("world"), null).length);
+
+        mb.setBodyIndexEnabled(false);
+        Assert.assertEquals(6, mf.search(new BodyTerm("report"), null).length);
+    }
+
+    @Test
+    public void testCompressedBodyStore() throws Exception {
+
+        final MockMailbox mb = MockMailbox.get("hendrik@unknown.com");
+        final CompressedBodyStore bodyStore = new CompressedBodyStore(3000, Deflater.BEST_SPEED);
+        mb.setBodyStore(bodyStore);
+        final MailboxFolder mf = mb.getInbox();
+
+        final char[] chars = new char[1000];
+        Arrays.fill(chars, 'x');
+
+        for (int i = 0; i < 5; i++) {
+            final MimeMessage msg = new MimeMessage((Session) null);
+            msg.setSubject("Test " + i);
+            msg.setFrom("from@sender.com");
+            msg.setText(i + new String(chars));
+            mf.add(msg);
+        }
+
+        // appending does not read the messages, so nothing is cached yet
+        Assert.assertEquals(0, bodyStore.getCachedBytes());
+
+        Assert.assertEquals("0" + new String(chars), mf.getByMsgNum(1).getContent());
+        // the headers are parsed on first access, reading the content right after is a hit
+        Assert.assertEquals(1, bodyStore.getMisses());
+        Assert.assertEquals(1, bodyStore.getHits());
+        Assert.assertEquals("Test 0", mf.getByMsgNum(1).getSubject());
+        Assert.assertEquals("0" + new String(chars), mf.getByMsgNum(1).getContent());
+        Assert.assertEquals(2, bodyStore.getHits());
+        Assert.assertEquals(0, bodyStore.getEvictions());
+
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(i + new String(chars), mf.getByMsgNum(i + 1).getContent());
+        }
+
+        // only the last two messages read fit into the cache
+        Assert.assertEquals(5, bodyStore.getMisses());
+        Assert.assertEquals(3, bodyStore.getEvictions());
+        Assert.assertTrue(bodyStore.getCachedBytes() <= 3000);
+
+        // expunged messages leave the cache
+        mf.setFlags(UidSet.range(11, UidSet.STAR), new Flags(Flag.DELETED), true);
+        mf.expunge();
+        Assert.assertEquals(0, bodyStore.getCachedBytes());
+    }
+
     @Test
     public void testDeleteFolder() throws Exception {
 
@@ -91,6 +302,366 @@ public class MailboxFolderTestCase extends AbstractTestCase {
         archive2013.deleteFolder(true);
         Assert.assertEquals(1, mf.getChildren().size());
         Assert.assertEquals(0, mf.getChildren().get(0).getChildren().size());
+
+        try {
+            archive2013.getByIdsChangedSince(UidSet.range(1, UidSet.STAR), 0);
+            Assert.fail();
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+
+        try {
+            archive2013.getExpungedSince(UidSet.range(1, UidSet.STAR), 0);
+            Assert.fail();
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testExpungeSelected() throws Exception {
+
+        final MockMailbox mb = MockMailbox.get("hendrik@unknown.com");
+        final MailboxFolder mf = mb.getInbox();
+
+        final MimeMessage msg = new MimeMessage((Session) null);
+        msg.setSubject("Test");
+        msg.setFrom("from@sender.com");
+        msg.setText("Some text here ...");
+
+        for (int i = 0; i < 10; i++) {
+            mf.add(msg); // 11 - 20
+        }
+
+        for (long uid = 12; uid <= 19; uid++) {
+            mf.getById(uid).setFlag(Flag.DELETED, true);
+        }
+
+        // fewer UIDs than deleted messages
+        Message[] expunged = mf.expunge(new Message[] { mf.getById(15), mf.getById(11), mf.getById(13), mf.getById(15) });
+        Assert.assertEquals(2, expunged.length);
+        Assert.assertEquals(13L, mf.getUID(expunged[0]));
+        Assert.assertEquals(15L, mf.getUID(expunged[1]));
+        Assert.assertTrue(expunged[0].isExpunged());
+        Assert.assertEquals(8, mf.getMessageCount());
+
+        // more UIDs than deleted messages
+        expunged = mf.expunge(mf.getMessages());
+        Assert.assertEquals(6, expunged.length);
+        Assert.assertEquals(2, mf.getMessageCount());
+        Assert.assertEquals(11L, mf.getUID(mf.getByMsgNum(1)));
+        Assert.assertEquals(20L, mf.getUID(mf.getByMsgNum(2)));
+        Assert.assertEquals(0, mf.expunge().length);
+    }
+
+    @Test
+    public void testGetByFlags() throws Exception {
+
+        final MockMailbox mb = MockMailbox.get("hendrik@unknown.com");
+        final MailboxFolder mf = mb.getInbox();
+
+        final MimeMessage msg = new MimeMessage((Session) null);
+        msg.setSubject("Test");
+        msg.setFrom("from@sender.com");
+        msg.setText("Some text here ...");
+        msg.setRecipient(RecipientType.TO, new InternetAddress("hendrik@unknown.com"));
+
+        for (int i = 0; i < 100; i++) {
+            mf.add(msg); // 11 - 110
+        }
+
+        for (final Message m : mf.getMessages()) {
+            if (mf.getUID(m) % 2 == 0) {
+                m.setFlag(Flag.SEEN, true);
+            }
+            if (mf.getUID(m) % 3 == 0) {
+                m.setFlags(new Flags("$Important"), true);
+            }
+        }
+
+        Assert.assertEquals(100, mf.getCountByFlags(new Flags(Flag.RECENT), true));
+        Assert.assertEquals(50, mf.getCountByFlags(new Flags(Flag.SEEN), true));
+        Assert.assertEquals(50, mf.getCountByFlags(new Flags(Flag.SEEN), false));
+        Assert.assertEquals(33, mf.getCountByFlags(new Flags("$important"), true));
+        Assert.assertEquals(0, mf.getCountByFlags(new Flags("unknown"), true));
+
+        final Flags seenAndImportant = new Flags(Flag.SEEN);
+        seenAndImportant.add("$Important");
+        final Message[] both = mf.getByFlags(seenAndImportant, true);
+        Assert.assertEquals(17, both.length);
+        Assert.assertEquals(12L, mf.getUID(both[0]));
+        Assert.assertEquals(17, mf.getCountByFlags(seenAndImportant, true));
+
+        // unseen messages are deleted and expunged, the remaining flags must survive the compaction
+        for (final Message m : mf.getByFlags(new Flags(Flag.SEEN), false)) {
+            m.setFlag(Flag.DELETED, true);
+        }
+        Assert.assertEquals(50, mf.getCountByFlags(new Flags(Flag.DELETED), true));
+        Assert.assertEquals(50, mf.expunge().length);
+
+        Assert.assertEquals(0, mf.getCountByFlags(new Flags(Flag.DELETED), true));
+        Assert.assertEquals(50, mf.getCountByFlags(new Flags(Flag.SEEN), true));
+        Assert.assertEquals(17, mf.getByFlags(new Flags("$Important"), true).length);
+        Assert.assertEquals(33, mf.getByFlags(new Flags("$Important"), false).length);
+    }
+
+    @Test
+    public void testGetByIds() throws Exception {
+
+        final MockMailbox mb = MockMailbox.get("hendrik@unknown.com");
+        final MailboxFolder mf = mb.getInbox();
+
+        final MimeMessage msg = new MimeMessage((Session) null);
+        msg.setSubject("Test");
+        msg.setFrom("from@sender.com");
+        msg.setText("Some text here ...");
+        msg.setRecipient(RecipientType.TO, new InternetAddress("hendrik@unknown.com"));
+
+        for (int i = 0; i < 10; i++) {
+            mf.add(msg); // 11 - 20
+        }
+
+        mf.getById(12).setFlag(Flag.DELETED, true);
+        mf.getById(15).setFlag(Flag.DELETED, true);
+        Assert.assertEquals(2, mf.expunge().length);
+        Assert.assertEquals(8, mf.getMessageCount());
+
+        final Message[] range = mf.getByIds(13, 17);
+        Assert.assertEquals(4, range.length);
+        Assert.assertEquals(13L, mf.getUID(range[0]));
+        Assert.assertEquals(17L, mf.getUID(range[3]));
+        Assert.assertEquals(2, range[0].getMessageNumber());
+
+        Assert.assertEquals(20L, mf.getUID(mf.getByIds(21, UIDFolder.LASTUID)[0]));
+        Assert.assertEquals(0, mf.getByIds(30, 40).length);
+
+        final Message[] byIds = mf.getByIds(new long[] { 20, 12, 11, 20, 99 });
+        Assert.assertEquals(2, byIds.length);
+        Assert.assertEquals(11L, mf.getUID(byIds[0]));
+        Assert.assertEquals(20L, mf.getUID(byIds[1]));
+        Assert.assertEquals(8, byIds[1].getMessageNumber());
+
+        Assert.assertEquals(16L, mf.getUID(mf.getByMsgNum(4)));
+    }
+
+    @Test
+    public void testGetByUidSet() throws Exception {
+
+        final MockMailbox mb = MockMailbox.get("hendrik@unknown.com");
+        final MailboxFolder mf = mb.getInbox();
+
+        final MimeMessage msg = new MimeMessage((Session) null);
+        msg.setSubject("Test");
+        msg.setFrom("from@sender.com");
+        msg.setText("Some text here ...");
+
+        for (int i = 0; i < 20; i++) {
+            mf.add(msg); // 11 - 30
+        }
+
+        final UidSet set = UidSet.parse("28:*, 3:12,15,14,16");
+        Assert.assertEquals("3:12,14:16,28:*", set.toString());
+        Assert.assertTrue(set.contains(3));
+        Assert.assertTrue(set.contains(100));
+        Assert.assertFalse(set.contains(13));
+        Assert.assertEquals(UidSet.parse("1:3,7"), UidSet.of(7, 3, 1, 2, 2));
+        Assert.assertEquals("30:40", UidSet.parse("40:*").resolveStar(30).toString());
+
+        Message[] found = mf.getByIds(set);
+        Assert.assertEquals(8, found.length);
+        Assert.assertEquals(11L, mf.getUID(found[0]));
+        Assert.assertEquals(12L, mf.getUID(found[1]));
+        Assert.assertEquals(14L, mf.getUID(found[2]));
+        Assert.assertEquals(30L, mf.getUID(found[7]));
+
+        // * is the highest uid, even if the range starts above it
+        found = mf.getByIds(UidSet.parse("100:*"));
+        Assert.assertEquals(1, found.length);
+        Assert.assertEquals(30L, mf.getUID(found[0]));
+
+        mf.setFlags(UidSet.parse("11:15"), new Flags(Flag.DELETED), true);
+        Assert.assertEquals(5, mf.getCountByFlags(new Flags(Flag.DELETED), true));
+        Assert.assertEquals(2, mf.expunge(UidSet.parse("12,14,20:*")).length);
+        Assert.assertEquals(18, mf.getMessageCount());
+        Assert.assertEquals(3, mf.getByIds(UidSet.parse("1:15")).length);
+    }
+
+    @Test
+    public void testHeaderIndex() throws Exception {
+
+        final MockMailbox mb = MockMailbox.get("hendrik@unknown.com");
+        final MailboxFolder mf = mb.getInbox();
+
+        for (int i = 0; i < 50; i++) {
+            final MimeMessage msg = new MimeMessage((Session) null);
+            msg.setSubject("Invoice " + i % 5);
+            msg.setFrom("sender" + i % 2 + "@sender.com");
+            msg.setText("Some text here ...");
+            msg.setRecipient(RecipientType.TO, new InternetAddress("hendrik@unknown.com"));
+            msg.setRecipient(RecipientType.CC, new InternetAddress("cc" + i % 3 + "@unknown.com"));
+            msg.setHeader("X-Ticket", "T-" + i % 10);
+            mf.add(msg); // 11 - 60
+        }
+
+        final SearchTerm[] terms = new SearchTerm[] { new SubjectTerm("invoice 3"), new FromStringTerm("SENDER1@"),
+                new RecipientStringTerm(RecipientType.CC, "cc2"), new RecipientStringTerm(RecipientType.TO, "nobody"),
+                new MessageIDTerm(((MimeMessage) mf.getById(42)).getMessageID()), new HeaderTerm("X-Ticket", "t-7"), new AndTerm(new SubjectTerm("1"), new FromStringTerm("1")) };
+        final int[] expected = new int[] { 10, 25, 16, 0, 1, 5, 5 };
+
+        for (int i = 0; i < terms.length; i++) {
+            Assert.assertEquals(expected[i], mf.search(terms[i], null).length);
+        }
+
+        mb.addIndexedHeader("X-Ticket");
+        mb.setHeaderIndexEnabled(true);
+
+        for (int i = 0; i < terms.length; i++) {
+            Assert.assertEquals(expected[i], mf.search(terms[i], null).length);
+        }
+
+        final MimeMessage msg = new MimeMessage((Session) null);
+        msg.setSubject("Invoice 3");
+        msg.setFrom("other@sender.com");
+        msg.setText("Some text here ...");
+        mf.add(msg); // 61, indexed on add
+        Assert.assertEquals(11, mf.search(new SubjectTerm("invoice 3"), null).length);
+        Assert.assertEquals(1, mf.search(new SubjectTerm("invoice 3"), new Message[] { mf.getById(61), mf.getById(12) }).length);
+
+        mf.setFlags(UidSet.parse("11:30"), new Flags(Flag.DELETED), true);
+        mf.expunge();
+        Assert.assertEquals(7, mf.search(new SubjectTerm("invoice 3"), null).length);
+        Assert.assertEquals(3, mf.search(new HeaderTerm("x-ticket", "T-7"), null).length);
+    }
+
+    @Test(timeout = 60000)
+    public void testHeaderIndexFlagRace() throws Exception {
+
+        final MockMailbox mb = MockMailbox.get("hendrik@unknown.com");
+        mb.setHeaderIndexEnabled(true);
+        mb.setSearchCacheSize(0);
+
+        for (int round = 0; round < 5; round++) {
+            // a new folder each round, so building the index parses the headers of messages which are being flagged
+            final MailboxFolder mf = mb.getInbox().getOrAddSubFolder("Round " + round).create();
+
+            for (int i = 0; i < 2000; i++) {
+                final MimeMessage msg = new MimeMessage((Session) null);
+                msg.setSubject("Test " + i);
+                msg.setText("Some text here ...");
+                mf.add(msg);
+            }
+
+            final Message[] msgs = mf.getMessages();
+            final CountDownLatch started = new CountDownLatch(1);
+            final AtomicBoolean stop = new AtomicBoolean();
+            final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+            // flag changes take the message lock first and then the folder lock
+            final Thread flagger = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (boolean set = true; !stop.get(); set = !set) {
+                            for (final Message msg : msgs) {
+                                msg.setFlags(new Flags(Flag.SEEN), set);
+                                started.countDown();
+                            }
+                        }
+                    } catch (final Exception e) {
+                        failure.set(e);
+                    }
+                }
+            };
+
+            flagger.start();
+            started.await();
+
+            try {
+                Assert.assertEquals(1111, mf.search(new SubjectTerm("test 1"), null).length);
+            } finally {
+                stop.set(true);
+                flagger.join();
+            }
+
+            Assert.assertNull(failure.get());
+        }
+    }
+
+    @Test
+    public void testIndexCaseFolding() throws Exception {
+
+        final MockMailbox mb = MockMailbox.get("hendrik@unknown.com");
+        mb.setSearchCacheSize(0);
+        final MailboxFolder mf = mb.getInbox();
+        final String[] texts = new String[] { "Trip to \u0130stanbul", "trip to istanbul", "Stra\u00dfe", "\u03a3\u03bf\u03c6\u03af\u03b1",
+                "Plain text" };
+
+        for (final String text : texts) {
+            final MimeMessage msg = new MimeMessage((Session) null);
+            msg.setSubject(text, "UTF-8");
+            msg.setFrom("from@sender.com");
+            msg.setText(text, "UTF-8");
+            mf.add(msg); // 11 - 15
+        }
+
+        // the whole string lower cased, "\u0130" becomes "i\u0307" which does not contain "istanbul"
+        final SearchTerm[] terms = new SearchTerm[] { new SubjectTerm("istanbul"), new BodyTerm("ISTANBUL"), new SubjectTerm("\u0130STANBUL"),
+                new BodyTerm("stra\u00dfe"), new SubjectTerm("\u03c3\u03bf\u03c6"), new BodyTerm("\u03a3\u039f\u03a6\u0399\u0391") };
+        final int[] expected = new int[] { 2, 2, 2, 1, 1, 0 };
+
+        for (int i = 0; i < terms.length; i++) {
+            Assert.assertEquals(expected[i], mf.search(terms[i], null).length);
+        }
+
+        mb.setHeaderIndexEnabled(true);
+        mb.setBodyIndexEnabled(true);
+
+        for (int i = 0; i < terms.length; i++) {
+            Assert.assertEquals(expected[i], mf.search(terms[i], null).length);
+        }
+    }
+
+    @Test
+    public void testIngestWithoutParsing() throws Exception {
+
+        final MockMailbox mb = MockMailbox.get("hendrik@unknown.com");
+        // no cache, so every read of a message counts as a miss
+        final CompressedBodyStore bodyStore = new CompressedBodyStore(0, Deflater.BEST_SPEED);
+        mb.setBodyStore(bodyStore);
+        final MailboxFolder mf = mb.getInbox();
+
+        final char[] chars = new char[500];
+        Arrays.fill(chars, 'x');
+
+        for (int i = 0; i < 3; i++) {
+            final MimeMessage msg = new MimeMessage((Session) null);
+            msg.setSubject("Test " + i);
+            msg.setSentDate(new Date(1000L * 1000 * 1000 * (i + 1)));
+            msg.setText(new String(chars));
+            mf.add(msg);
+        }
+
+        // the size is known without parsing the headers
+        Assert.assertEquals(0, bodyStore.getMisses());
+        Assert.assertEquals(500, mf.getByMsgNum(1).getSize());
+        Assert.assertEquals(3, mf.search(new SizeTerm(ComparisonTerm.EQ, 500), null).length);
+        Assert.assertEquals(0, bodyStore.getMisses());
+
+        // the first search by Date header parses every message once, from then on appending does
+        Assert.assertEquals(2, mf.search(new SentDateTerm(ComparisonTerm.GE, new Date(2000L * 1000 * 1000)), null).length);
+        Assert.assertEquals(3, bodyStore.getMisses());
+
+        final MimeMessage msg = new MimeMessage((Session) null);
+        msg.setSentDate(new Date(4000L * 1000 * 1000));
+        msg.setText(new String(chars));
+        mf.add(msg);
+        Assert.assertEquals(4, bodyStore.getMisses());
+
+        Assert.assertEquals(3, mf.search(new SentDateTerm(ComparisonTerm.GE, new Date(2000L * 1000 * 1000)), null).length);
+        mf.setFlags(UidSet.of(12), new Flags(Flag.DELETED), true);
+        mf.expunge();
+        Assert.assertEquals(2, mf.search(new SentDateTerm(ComparisonTerm.GE, new Date(2000L * 1000 * 1000)), null).length);
+        Assert.assertEquals(4, bodyStore.getMisses());
     }
 
     @Test
@@ -111,6 +682,125 @@ public class MailboxFolderTestCase extends AbstractTestCase {
         Assert.assertEquals(0, mb.getInbox().getMessageCount());
     }
 
+    @Test
+    public void testMappedBodyStore() throws Exception {
+
+        final MockMailbox mb = MockMailbox.get("hendrik@unknown.com");
+        mb.setBodyStore(new MappedBodyStore(new File(System.getProperty("java.io.tmpdir")), 2048));
+        final MailboxFolder mf = mb.getInbox();
+
+        final MimeMessage msg = new MimeMessage((Session) null);
+        msg.setSubject("Test");
+        msg.setFrom("from@sender.com");
+        final MimeMultipart multipart = new MimeMultipart();
+        final MimeBodyPart text = new MimeBodyPart();
+        text.setText("Some text here ...");
+        multipart.addBodyPart(text);
+        final MimeBodyPart attachment = new MimeBodyPart();
+        final char[] chars = new char[3000];
+        Arrays.fill(chars, 'x');
+        attachment.setText(new String(chars));
+        multipart.addBodyPart(attachment);
+        msg.setContent(multipart);
+
+        final MimeMessage small = new MimeMessage((Session) null);
+        small.setSubject("Small");
+        small.setFrom("from@sender.com");
+        small.setText("Some text here ...");
+
+        // the large message gets a segment of its own, the small ones share one
+        for (int i = 0; i < 10; i++) {
+            mf.add(small);
+        }
+
+        mf.add(msg);
+        mf.add(small);
+        Assert.assertEquals(12, mf.getMessageCount());
+
+        for (int i = 1; i <= 12; i++) {
+            final Message stored = mf.getByMsgNum(i);
+
+            if (i == 11) {
+                final MimeMultipart content = (MimeMultipart) stored.getContent();
+                Assert.assertEquals("Test", stored.getSubject());
+                Assert.assertEquals(2, content.getCount());
+                Assert.assertEquals("Some text here ...", content.getBodyPart(0).getContent());
+                Assert.assertEquals(new String(chars), content.getBodyPart(1).getContent());
+            } else {
+                Assert.assertEquals("Small", stored.getSubject());
+                Assert.assertEquals("Some text here ...", stored.getContent());
+            }
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            stored.writeTo(out);
+            final MimeMessage parsed = new MimeMessage(null, new ByteArrayInputStream(out.toByteArray()));
+            Assert.assertEquals(stored.getSubject(), parsed.getSubject());
+            Assert.assertEquals(stored.getSize(), parsed.getSize());
+        }
+
+        try {
+            mb.setBodyStore(null);
+            Assert.fail();
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testMessageNumbersAfterExpunge() throws Exception {
+
+        final MockMailbox mb = MockMailbox.get("hendrik@unknown.com");
+        final MailboxFolder mf = mb.getInbox();
+
+        final MimeMessage msg = new MimeMessage((Session) null);
+        msg.setSubject("Test");
+        msg.setFrom("from@sender.com");
+        msg.setText("Some text here ...");
+        msg.setRecipient(RecipientType.TO, new InternetAddress("hendrik@unknown.com"));
+
+        for (int i = 0; i < 200; i++) {
+            mf.add(msg); // 11 - 210
+        }
+
+        // expunge every uid not divisible by 2, then 4, then 8
+        for (int round = 2; round <= 8; round *= 2) {
+            for (final Message m : mf.getMessages()) {
+                if (mf.getUID(m) % round != 0) {
+                    m.setFlag(Flag.DELETED, true);
+                }
+            }
+            mf.expunge();
+        }
+
+        Assert.assertEquals(25, mf.getMessageCount());
+
+        for (int i = 1; i <= 25; i++) {
+            final Message m = mf.getByMsgNum(i);
+            Assert.assertEquals(8L * (i + 1), mf.getUID(m));
+            Assert.assertEquals(i, m.getMessageNumber());
+        }
+
+        mf.add(msg);
+        Assert.assertEquals(211L, mf.getUID(mf.getByMsgNum(26)));
+        Assert.assertEquals(26, mf.getById(211).getMessageNumber());
+
+        // expunged messages keep the number they had before the expunge
+        mf.setFlags(UidSet.of(16, 24, 211), new Flags(Flag.DELETED), true);
+        Message[] expunged = mf.expunge();
+        Assert.assertEquals(3, expunged.length);
+        Assert.assertEquals(1, expunged[0].getMessageNumber());
+        Assert.assertEquals(2, expunged[1].getMessageNumber());
+        Assert.assertEquals(26, expunged[2].getMessageNumber());
+
+        // 32, 40, 48 are 1, 2, 3 now, 32 stays
+        mf.setFlags(UidSet.of(32, 40, 48), new Flags(Flag.DELETED), true);
+        expunged = mf.expunge(UidSet.of(40, 48));
+        Assert.assertEquals(2, expunged.length);
+        Assert.assertEquals(2, expunged[0].getMessageNumber());
+        Assert.assertEquals(3, expunged[1].getMessageNumber());
+        Assert.assertEquals(1, mf.getById(32).getMessageNumber());
+    }
+
     @Test(expected = MockTestException.class)
     public void testMockMessagesReadonly() throws Exception {
 
@@ -132,6 +822,166 @@ public class MailboxFolderTestCase extends AbstractTestCase {
 
     }
 
+    @Test
+    public void testParallelSearch() throws Exception {
+
+        final MockMailbox mb = MockMailbox.get("hendrik@unknown.com");
+        final MailboxFolder mf = mb.getInbox();
+
+        for (int i = 0; i < 500; i++) {
+            final MimeMessage msg = new MimeMessage((Session) null);
+            msg.setSubject("Test " + i);
+            msg.setFrom("from@sender.com");
+            msg.setText("Some text here ...");
+            mf.add(msg); // 11 - 510
+        }
+
+        // a custom term no index knows about
+        final SearchTerm term = new SearchTerm() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public boolean match(final Message msg) {
+                return ((MockMessage) msg).getMockid() % 3 == 0;
+            }
+        };
+
+        final Message[] sequential = mf.search(term, null);
+        Assert.assertEquals(167, sequential.length);
+
+        mb.setParallelSearchThreshold(10);
+        final Message[] parallel = mf.search(term, null);
+        Assert.assertArrayEquals(sequential, parallel);
+        Assert.assertEquals(39, mf.search(new AndTerm(new SubjectTerm("test 1"), term), null).length);
+
+        try {
+            mb.setParallelSearchThreshold(0);
+            Assert.fail();
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRangeIndexes() throws Exception {
+
+        final MockMailbox mb = MockMailbox.get("hendrik@unknown.com");
+        final MailboxFolder mf = mb.getInbox();
+        final long day = 24L * 60 * 60 * 1000;
+        final long now = (System.currentTimeMillis() / 1000) * 1000;
+
+        for (int i = 0; i < 50; i++) {
+            final MimeMessage msg = new MimeMessage((Session) null);
+            msg.setSubject("Test " + i);
+            msg.setFrom("from@sender.com");
+            msg.setText(i % 4 == 0 ? "Short" : "A somewhat longer text here ...");
+
+            if (i % 10 != 9) {
+                msg.setSentDate(new Date(now - i * day));
+            }
+
+            mf.add(msg); // 11 - 60
+        }
+
+        Assert.assertNotNull(mf.getById(11).getReceivedDate());
+
+        final Date tenDaysAgo = new Date(now - 10 * day);
+        final int size = mf.getById(12).getSize();
+        final SearchTerm[] terms = new SearchTerm[] { new SentDateTerm(ComparisonTerm.LT, tenDaysAgo),
+                new SentDateTerm(ComparisonTerm.LE, tenDaysAgo), new SentDateTerm(ComparisonTerm.EQ, tenDaysAgo),
+                new SentDateTerm(ComparisonTerm.NE, tenDaysAgo), new SentDateTerm(ComparisonTerm.GT, tenDaysAgo),
+                new SentDateTerm(ComparisonTerm.GE, tenDaysAgo), new ReceivedDateTerm(ComparisonTerm.LE, new Date()),
+                new ReceivedDateTerm(ComparisonTerm.GT, new Date(now + day)), new SizeTerm(ComparisonTerm.GE, size),
+                new SizeTerm(ComparisonTerm.LT, size),
+                new AndTerm(new SentDateTerm(ComparisonTerm.GE, tenDaysAgo), new SizeTerm(ComparisonTerm.EQ, size)),
+                new NotTerm(new SentDateTerm(ComparisonTerm.LT, tenDaysAgo)) };
+        final int[] expected = new int[] { 35, 36, 1, 44, 9, 10, 50, 0, 37, 13, 7, 15 };
+
+        for (int i = 0; i < terms.length; i++) {
+            int matching = 0;
+            for (final Message msg : mf.getMessages()) {
+                if (terms[i].match(msg)) {
+                    matching++;
+                }
+            }
+
+            Assert.assertEquals(expected[i], matching);
+            Assert.assertEquals(expected[i], mf.search(terms[i], null).length);
+        }
+
+        mf.setFlags(UidSet.parse("11:30"), new Flags(Flag.DELETED), true);
+        mf.expunge();
+        Assert.assertEquals(0, mf.search(new SentDateTerm(ComparisonTerm.GE, tenDaysAgo), null).length);
+        Assert.assertEquals(27, mf.search(new SentDateTerm(ComparisonTerm.LT, tenDaysAgo), null).length);
+        Assert.assertEquals(22, mf.search(new SizeTerm(ComparisonTerm.GE, size), null).length);
+
+        // a batch shares one received date, so all of it is in the same posting list
+        final MimeMessage[] batch = new MimeMessage[100];
+
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = new MimeMessage((Session) null);
+            batch[i].setText("Batch " + i);
+        }
+
+        mf.addAll(batch); // 61 - 160
+        final Date received = mf.getById(61).getReceivedDate();
+        final long[] even = new long[50];
+
+        for (int i = 0; i < even.length; i++) {
+            even[i] = 62 + 2 * i;
+        }
+
+        mf.setFlags(UidSet.of(even), new Flags(Flag.DELETED), true);
+        mf.expunge();
+        int remaining = 0;
+
+        for (final Message msg : mf.search(new ReceivedDateTerm(ComparisonTerm.GE, received), null)) {
+            final long uid = ((MockMessage) msg).getMockid();
+
+            if (uid > 60) {
+                Assert.assertEquals(1, uid % 2);
+                remaining++;
+            }
+        }
+
+        Assert.assertEquals(50, remaining);
+    }
+
+    @Test
+    public void testRawStorage() throws Exception {
+
+        final MockMailbox mb = MockMailbox.get("hendrik@unknown.com");
+        final MailboxFolder mf = mb.getInbox();
+        final MailboxFolder archive = mf.getOrAddSubFolder("Archive").create();
+
+        final MimeMessage msg = new MimeMessage((Session) null);
+        msg.setSubject("Test");
+        msg.setFrom("from@sender.com");
+        msg.setText("Some text here ...");
+        final MockMessage stored = (MockMessage) mf.add(msg); // 11
+
+        // the stored message does not change with the source
+        msg.setSubject("Changed");
+        Assert.assertEquals("Test", stored.getSubject());
+        Assert.assertEquals("Some text here ...", stored.getContent());
+        Assert.assertEquals("INBOX", stored.getHeader("X-Mock-Folder", null));
+        Assert.assertEquals("11", stored.getHeader("Message-ID")[1]);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        stored.writeTo(out);
+        final MimeMessage parsed = new MimeMessage(null, new ByteArrayInputStream(out.toByteArray()));
+        Assert.assertEquals("Test", parsed.getSubject());
+        Assert.assertEquals("11", parsed.getHeader("Message-ID")[1]);
+        Assert.assertEquals(stored.getSize(), parsed.getSize());
+
+        // a copy of a stored message shares its raw bytes
+        final MockMessage copy = (MockMessage) archive.add(stored);
+        Assert.assertEquals("Test", copy.getSubject());
+        Assert.assertEquals("Some text here ...", copy.getContent());
+        Assert.assertArrayEquals(new String[] { "INBOX", "INBOX/Archive" }, copy.getHeader("X-Mock-Folder"));
+        Assert.assertEquals(stored.getSize(), copy.getSize());
+    }
+
     @Test
     public void testRenameFolder() throws Exception {
 
@@ -143,6 +993,196 @@ public class MailboxFolderTestCase extends AbstractTestCase {
         Assert.assertEquals("INBOX/dummy/2013", archive2013.getFullName());
     }
 
+    @Test
+    public void testSearchCache() throws Exception {
+
+        final MockMailbox mb = MockMailbox.get("hendrik@unknown.com");
+        final MailboxFolder mf = mb.getInbox();
+
+        for (int i = 0; i < 20; i++) {
+            final MimeMessage msg = new MimeMessage((Session) null);
+            msg.setSubject("Test " + i);
+            msg.setFrom("from@sender.com");
+            msg.setText("Some text here ...");
+            mf.add(msg); // 11 - 30
+        }
+
+        final SearchTerm unseen = new FlagTerm(new Flags(Flag.SEEN), false);
+        final Message[] first = mf.search(unseen, null);
+        Assert.assertEquals(20, first.length);
+        first[0] = null;
+        final Message[] second = mf.search(new FlagTerm(new Flags(Flag.SEEN), false), null);
+        Assert.assertEquals(20, second.length);
+        Assert.assertNotNull(second[0]);
+        Assert.assertEquals(2, mf.search(unseen, new Message[] { mf.getById(11), mf.getById(12) }).length);
+
+        mf.setFlags(UidSet.parse("11:15"), new Flags(Flag.SEEN), true);
+        Assert.assertEquals(15, mf.search(unseen, null).length);
+
+        final MimeMessage msg = new MimeMessage((Session) null);
+        msg.setSubject("Test");
+        msg.setFrom("from@sender.com");
+        msg.setText("Some text here ...");
+        mf.add(msg); // 31
+        Assert.assertEquals(16, mf.search(unseen, null).length);
+
+        mf.setFlags(UidSet.parse("16:20"), new Flags(Flag.DELETED), true);
+        mf.expunge();
+        Assert.assertEquals(11, mf.search(unseen, null).length);
+
+        // terms which may depend on more than the message are never cached
+        final boolean[] matchAll = new boolean[] { true };
+        final SearchTerm custom = new SearchTerm() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public boolean match(final Message msg) {
+                return matchAll[0];
+            }
+        };
+
+        Assert.assertEquals(16, mf.search(custom, null).length);
+        matchAll[0] = false;
+        Assert.assertEquals(0, mf.search(custom, null).length);
+        Assert.assertEquals(0, mf.search(new AndTerm(unseen, custom), null).length);
+
+        mb.setSearchCacheSize(0);
+        Assert.assertEquals(11, mf.search(unseen, null).length);
+    }
+
+    @Test
+    public void testSearchPlanner() throws Exception {
+
+        final MockMailbox mb = MockMailbox.get("hendrik@unknown.com");
+        final MailboxFolder mf = mb.getInbox();
+        mb.setHeaderIndexEnabled(true);
+
+        for (int i = 0; i < 60; i++) {
+            final MimeMessage msg = new MimeMessage((Session) null);
+            msg.setSubject("Invoice " + i % 5);
+            msg.setFrom("sender" + i % 2 + "@sender.com");
+            msg.setText(i % 3 == 0 ? "Short" : "A somewhat longer text here ...");
+            mf.add(msg); // 11 - 70
+        }
+
+        mf.setFlags(UidSet.parse("11:30"), new Flags(Flag.SEEN), true);
+        mf.setFlags(UidSet.parse("25:40"), new Flags(Flag.FLAGGED), true);
+        final Flags userFlag = new Flags("Urgent");
+        mf.setFlags(UidSet.parse("35,36,60:70"), userFlag, true);
+        final int size = mf.getById(11).getSize();
+
+        final SearchTerm seen = new FlagTerm(new Flags(Flag.SEEN), true);
+        final SearchTerm flagged = new FlagTerm(new Flags(Flag.FLAGGED), true);
+        final SearchTerm subject = new SubjectTerm("invoice 3");
+        final SearchTerm[] terms = new SearchTerm[] { seen, new FlagTerm(new Flags(Flag.SEEN), false),
+                new FlagTerm(new Flags("urgent"), true), new FlagTerm(new Flags("Unknown"), false), new AndTerm(seen, flagged),
+                new OrTerm(seen, flagged), new NotTerm(seen), new AndTerm(new NotTerm(seen), subject), new OrTerm(subject, flagged),
+                new AndTerm(new OrTerm(seen, new FlagTerm(userFlag, true)), new NotTerm(new FromStringTerm("sender1"))),
+                new AndTerm(new SizeTerm(ComparisonTerm.LE, size), subject), new NotTerm(new SizeTerm(ComparisonTerm.GT, size)),
+                new OrTerm(new SizeTerm(ComparisonTerm.NE, size), new BodyTerm("short")), new NotTerm(new AndTerm(seen, subject)),
+                new AndTerm(flagged, new NotTerm(flagged)) };
+
+        for (final SearchTerm term : terms) {
+            int expected = 0;
+            for (final Message msg : mf.getMessages()) {
+                if (term.match(msg)) {
+                    expected++;
+                }
+            }
+
+            Assert.assertEquals(expected, mf.search(term, null).length);
+        }
+
+        Assert.assertEquals(47, mf.search(new NotTerm(new AndTerm(seen, new NotTerm(new BodyTerm("short")))), null).length);
+        Assert.assertEquals(1, mf.search(new AndTerm(seen, flagged), new Message[] { mf.getById(11), mf.getById(30) }).length);
+
+        mf.setFlags(UidSet.parse("11:20"), new Flags(Flag.DELETED), true);
+        mf.expunge();
+        Assert.assertEquals(10, mf.search(seen, null).length);
+        Assert.assertEquals(40, mf.search(new NotTerm(seen), null).length);
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        final MockMailbox mb = MockMailbox.get("hendrik@unknown.com");
+        final MailboxFolder mf = mb.getInbox();
+
+        final MimeMessage msg = new MimeMessage((Session) null);
+        msg.setSubject("Test");
+        msg.setFrom("from@sender.com");
+        msg.setText("Some text here ...");
+        msg.setRecipient(RecipientType.TO, new InternetAddress("hendrik@unknown.com"));
+        mf.add(msg); // 11
+        mf.add(msg); // 12
+        mf.add(msg); // 13
+
+        final MailboxFolder.Snapshot snapshot = mf.getSnapshot();
+        Assert.assertSame(snapshot, mf.getSnapshot());
+        Assert.assertEquals(mf.getVersion(), snapshot.getVersion());
+
+        mf.getById(12).setFlag(Flag.DELETED, true);
+        mf.expunge();
+        mf.add(msg); // 14
+
+        Assert.assertEquals(3, snapshot.getMessageCount());
+        Assert.assertEquals(12L, snapshot.getMessage(2).getMockid());
+        Assert.assertEquals(2, snapshot.getMessageNumber(12));
+        Assert.assertFalse(snapshot.isSet(2, Flag.DELETED));
+        Assert.assertEquals(3, snapshot.getCountByFlags(new Flags(Flag.RECENT), true));
+        Assert.assertEquals(14L, snapshot.getUidNext());
+
+        final MailboxFolder.Snapshot current = mf.getSnapshot();
+        Assert.assertTrue(current.getVersion() > snapshot.getVersion());
+        Assert.assertEquals(3, current.getMessageCount());
+        Assert.assertEquals(13L, current.getMessage(2).getMockid());
+        Assert.assertEquals(-1, current.getMessageNumber(12));
+        Assert.assertNull(current.getById(12));
+        Assert.assertEquals(3, current.getMessageNumber(14));
+        Assert.assertTrue(current.getFlags(3).contains(Flag.RECENT));
+    }
+
+    @Test
+    public void testStatus() throws Exception {
+
+        final MockMailbox mb = MockMailbox.get("hendrik@unknown.com");
+        final MailboxFolder mf = mb.getInbox();
+
+        final MimeMessage msg = new MimeMessage((Session) null);
+        msg.setSubject("Test");
+        msg.setFrom("from@sender.com");
+        msg.setText("Some text here ...");
+        msg.setRecipient(RecipientType.TO, new InternetAddress("hendrik@unknown.com"));
+        mf.add(msg); // 11
+        mf.add(msg); // 12
+        mf.add(msg); // 13
+
+        final int size = mf.getByMsgNum(1).getSize();
+        Assert.assertTrue(size > 0);
+
+        mf.getById(11).setFlag(Flag.SEEN, true);
+        mf.getById(12).setFlag(Flag.DELETED, true);
+
+        MailboxFolder.Status status = mf.getStatus();
+        Assert.assertEquals(3, status.getMessageCount());
+        Assert.assertEquals(3, status.getRecentCount());
+        Assert.assertEquals(2, status.getUnseenCount());
+        Assert.assertEquals(1, status.getDeletedCount());
+        Assert.assertEquals(3L * size, status.getSizeInBytes());
+        Assert.assertEquals(14L, status.getUidNext());
+        Assert.assertEquals(3 * size, mf.getSizeInBytes());
+        Assert.assertArrayEquals(new int[] { size, size, size }, mf.getSizes());
+
+        mf.expunge();
+
+        status = mf.getStatus();
+        Assert.assertEquals(2, status.getMessageCount());
+        Assert.assertEquals(1, status.getUnseenCount());
+        Assert.assertEquals(0, status.getDeletedCount());
+        Assert.assertEquals(2L * size, status.getSizeInBytes());
+        Assert.assertEquals(14L, status.getUidNext());
+        Assert.assertEquals(mf.getUidValidity(), status.getUidValidity());
+    }
+
     @Test
     public void testUIDMessages() throws Exception {
 
@@ -163,4 +1203,44 @@ public class MailboxFolderTestCase extends AbstractTestCase {
 
     }
 
+    @Test
+    public void testUserFlagBit() throws Exception {
+
+        final MockMailbox mb = MockMailbox.get("hendrik@unknown.com");
+        final MailboxFolder mf = mb.getInbox();
+
+        final MimeMessage msg = new MimeMessage((Session) null);
+        msg.setSubject("Test");
+        msg.setFrom("from@sender.com");
+        msg.setText("Some text here ...");
+
+        for (int i = 0; i < 5; i++) {
+            mf.add(msg); // 11 - 15
+        }
+
+        final Flags user = new Flags(Flag.USER);
+        Assert.assertEquals(0, mf.getCountByFlags(user, true));
+        Assert.assertEquals(5, mf.getCountByFlags(user, false));
+        Assert.assertEquals(0, mf.search(new FlagTerm(user, true), null).length);
+
+        // the USER bit is independent of the user flags
+        mf.getById(12).setFlags(new Flags("$Important"), true);
+        Assert.assertEquals(0, mf.getCountByFlags(user, true));
+
+        mf.getById(13).setFlag(Flag.USER, true);
+        mf.getById(14).setFlags(user, true);
+        Assert.assertEquals(2, mf.getCountByFlags(user, true));
+        Assert.assertEquals(3, mf.getByFlags(user, false).length);
+        Assert.assertEquals(2, mf.search(new FlagTerm(user, true), null).length);
+        Assert.assertEquals(3, mf.search(new NotTerm(new FlagTerm(user, true)), null).length);
+
+        final Flags userAndSeen = new Flags(Flag.USER);
+        userAndSeen.add(Flag.SEEN);
+        mf.getById(14).setFlag(Flag.SEEN, true);
+        final Message[] both = mf.getByFlags(userAndSeen, true);
+        Assert.assertEquals(1, both.length);
+        Assert.assertEquals(14L, mf.getUID(both[0]));
+        Assert.assertTrue(mf.getSnapshot().getFlags(3).contains(Flag.USER));
+    }
+
 }
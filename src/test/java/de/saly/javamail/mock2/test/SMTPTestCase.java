@@ -28,6 +28,7 @@ package de.saly.javamail.mock2.test;
 import java.util.Properties;
 
 import javax.mail.Address;
+import javax.mail.Flags.Flag;
 import javax.mail.Folder;
 import javax.mail.Message.RecipientType;
 import javax.mail.MessagingException;
@@ -42,6 +43,8 @@ import org.junit.FixMethodOrder;
 import org.junit.Test;
 import org.junit.runners.MethodSorters;
 
+import de.saly.javamail.mock2.DedupBodyStore;
+import de.saly.javamail.mock2.MailboxFolder;
 import de.saly.javamail.mock2.MockMailbox;
 import de.saly.javamail.mock2.Providers;
 import de.saly.javamail.mock2.test.support.MockTestException;
@@ -123,4 +126,40 @@ public class SMTPTestCase extends AbstractTestCase {
 
     }
 
+    @Test
+    public void test4SendMessageDeduplicated() throws Exception {
+
+        final Transport transport = session.getTransport(Providers.getSMTPProvider("makes_no_difference_here", true, true));
+
+        final MimeMessage msg = new MimeMessage((Session) null);
+        msg.setSubject("Test 1");
+        msg.setFrom("from@sender.com");
+        msg.setText("Some text here ...");
+        msg.setRecipient(RecipientType.TO, new InternetAddress("list@unknown.com"));
+        final Address[] recipients = new Address[] { new InternetAddress("hendrik@unknown.com"), new InternetAddress("jane@unknown.com"),
+                new InternetAddress("john@unknown.com") };
+        transport.sendMessage(msg, recipients);
+
+        final DedupBodyStore bodyStore = (DedupBodyStore) MockMailbox.get("hendrik@unknown.com").getBodyStore();
+        Assert.assertEquals(1, bodyStore.size());
+
+        // a copy to another folder shares the body as well
+        final MailboxFolder archive = MockMailbox.get("jane@unknown.com").getRoot().getOrAddSubFolder("Archive").create();
+        archive.add((MimeMessage) MockMailbox.get("jane@unknown.com").getInbox().getByMsgNum(1));
+        Assert.assertEquals(1, bodyStore.size());
+        Assert.assertEquals("Test 1", archive.getByMsgNum(1).getSubject());
+
+        for (final Address recipient : recipients) {
+            final MailboxFolder inbox = MockMailbox.get(recipient).getInbox();
+            Assert.assertEquals("Test 1", inbox.getByMsgNum(1).getSubject());
+            Assert.assertArrayEquals(new String[] { "INBOX" }, inbox.getByMsgNum(1).getHeader("X-Mock-Folder"));
+            inbox.getByMsgNum(1).setFlag(Flag.DELETED, true);
+            inbox.expunge();
+        }
+
+        Assert.assertEquals(1, bodyStore.size());
+        archive.deleteFolder(false);
+        Assert.assertEquals(0, bodyStore.size());
+    }
+
 }